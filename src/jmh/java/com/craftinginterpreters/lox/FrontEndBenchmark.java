@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Scanning, parsing and resolving a large generated source.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+    @Param({"1000"})
+    int functions;
+
+    private byte[] source;
+    private TokenBuffer tokens;
+    private List<Stmt> statements;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            builder.append("fun f").append(i).append("(a, b) {\n")
+                    .append("  var sum = 0;\n")
+                    .append("  for (var i = 0; i < a; i = i + 1) {\n")
+                    .append("    if (i > b) sum = sum + i * 2; else sum = sum - 1;\n")
+                    .append("  }\n")
+                    .append("  var text = \"f").append(i).append("\" + \"!\";\n")
+                    .append("  return sum + b / 3;\n")
+                    .append("}\n")
+                    .append("class C").append(i).append(" {\n")
+                    .append("  init(x) { this.x = x; }\n")
+                    .append("  get() { return this.x + f").append(i).append("(1, 2); }\n")
+                    .append("}\n");
+        }
+        source = builder.toString().getBytes(StandardCharsets.UTF_8);
+        tokens = new Scanner(ByteBuffer.wrap(source)).scanTokens();
+        statements = new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public TokenBuffer scan() {
+        return new Scanner(ByteBuffer.wrap(source)).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    // Resolving again writes the same annotations over the old ones.
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver().resolve(statements);
+        return statements;
+    }
+}
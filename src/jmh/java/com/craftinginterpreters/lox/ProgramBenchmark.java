@@ -0,0 +1,69 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Whole programs, from source to result, on a fresh interpreter each time.
+// They leave their answer in the global "result" instead of printing it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramBenchmark {
+    private static final String FIB =
+            "fun fib(n) { if (n <= 1) return n; return fib(n - 2) + fib(n - 1); }\n"
+            + "var result = fib(20);\n";
+
+    private static final String COUNTER =
+            "fun makeCounter(x) { var i = x; fun count() { i = i + 1; return i; } return count; }\n"
+            + "var counter = makeCounter(0);\n"
+            + "var result = 0;\n"
+            + "for (var i = 0; i < 100000; i = i + 1) result = counter();\n";
+
+    private static final String CLASSES =
+            "class Shape { init(size) { this.size = size; } area() { return 0; } }\n"
+            + "class Square < Shape { area() { return this.size * this.size; } }\n"
+            + "class Circle < Shape { area() { return 3 * this.size * this.size; } }\n"
+            + "var result = 0;\n"
+            + "var square = true;\n"
+            + "for (var i = 0; i < 20000; i = i + 1) {\n"
+            + "  var shape;\n"
+            + "  if (square) shape = Square(i); else shape = Circle(i);\n"
+            + "  square = !square;\n"
+            + "  result = result + shape.area();\n"
+            + "}\n";
+
+    private static final Token RESULT = new Token(TokenType.IDENTIFIER,
+            "result", null, 1, Symbols.intern("result"));
+
+    // Compiles the way jlox does, optimizer passes included.
+    private static Object run(String program) {
+        List<Stmt> statements = Lox.compile(null, ByteBuffer.wrap(
+                program.getBytes(StandardCharsets.UTF_8)));
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(statements);
+        return interpreter.globals.get(RESULT);
+    }
+
+    @Benchmark
+    public Object fib() {
+        return run(FIB);
+    }
+
+    @Benchmark
+    public Object counter() {
+        return run(COUNTER);
+    }
+
+    @Benchmark
+    public Object classes() {
+        return run(CLASSES);
+    }
+}
@@ -0,0 +1,80 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The operations the tree-walker spends its time in: reading variables
+// through enclosing scopes, reading and writing fields, and calling a
+// method through a bound function.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeBenchmark {
+    @Param({"1", "8", "32"})
+    int depth;
+
+    private Environment innermost;
+    private Interpreter interpreter;
+    private LoxInstance instance;
+    private LoxFunction method;
+    private Token x;
+    private final List<Object> arguments = List.of(1.0);
+    private double value = 0;
+
+    @Setup
+    public void setup() {
+        innermost = new Environment();
+        for (int i = 0; i < depth; i++) {
+            innermost = new Environment(innermost, 1);
+            innermost.defineLocal((double) i);
+        }
+
+        interpreter = new Interpreter();
+        run("class Point { init(x) { this.x = x; this.y = 0; }"
+                + " plus(n) { return this.x + n; } }"
+                + " var point = Point(1);");
+        instance = (LoxInstance) interpreter.globals.get(identifier("point"));
+        method = instance.shape.claos.findMethod(Symbols.intern("plus"));
+        x = identifier("x");
+    }
+
+    private void run(String program) {
+        TokenBuffer tokens = new Scanner(ByteBuffer.wrap(
+                program.getBytes(StandardCharsets.UTF_8))).scanTokens();
+        List<Stmt> statements = new Parser(tokens).parse();
+        new Resolver().resolve(statements);
+        interpreter.interpret(statements);
+    }
+
+    private static Token identifier(String name) {
+        return new Token(TokenType.IDENTIFIER, name, null, 1,
+                Symbols.intern(name));
+    }
+
+    @Benchmark
+    public Object outermostLocal() {
+        return innermost.getAt(depth - 1, 0);
+    }
+
+    @Benchmark
+    public Object fieldGet() {
+        return instance.get(x);
+    }
+
+    @Benchmark
+    public void fieldSet() {
+        instance.set(x, value++);
+    }
+
+    @Benchmark
+    public Object boundMethodCall() {
+        return method.bind(instance).call(interpreter, arguments);
+    }
+}
@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Something compiled code took for granted when it was compiled. Whoever
+// breaks the assumption invalidates it. Code that is still running checks
+// it before every use, and code that has not started yet is thrown away
+// by the dependents registered here.
+class Assumption {
+    interface Dependent {
+        void invalidated();
+
+        // True once the code is gone for some other reason, so the
+        // assumption can let go of it.
+        boolean isGone();
+    }
+
+    private boolean valid = true;
+    private final List<Dependent> dependents = new ArrayList<>();
+
+    boolean isValid() {
+        return valid;
+    }
+
+    void whenInvalidated(Dependent dependent) {
+        dependents.removeIf(Dependent::isGone);
+        dependents.add(dependent);
+    }
+
+    // Stops notifying a dependent that was discarded by another assumption.
+    void forget(Dependent dependent) {
+        dependents.removeIf(registered -> registered == dependent || registered.isGone());
+    }
+
+    void invalidate() {
+        if (!valid) return;
+        valid = false;
+        // Dependents forget the other assumptions they made as they go.
+        List<Dependent> invalidated = new ArrayList<>(dependents);
+        dependents.clear();
+        for (Dependent dependent : invalidated) {
+            dependent.invalidated();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.Stream;
+
+// Times Lox workloads, for jlox --bench. Each workload is run a few times
+// to warm up and then measured over a number of runs, each compiled from
+// source and run on a fresh interpreter with its output thrown away. The
+// report gives the median and 95th percentile wall time of a run and the
+// median bytes it allocated.
+//
+// Results can be saved as a JSON baseline and later runs compared with
+// it. A workload whose median time or allocation grew past the threshold
+// is flagged as a regression.
+class BenchmarkRunner {
+    static final class Result {
+        final double medianMs;
+        final double p95Ms;
+        final long allocatedBytes;
+
+        Result(double medianMs, double p95Ms, long allocatedBytes) {
+            this.medianMs = medianMs;
+            this.p95Ms = p95Ms;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final BiFunction<Path, ByteBuffer, List<Stmt>> frontEnd;
+    // Makes a fresh interpreter or VM for each run.
+    private final Supplier<Consumer<List<Stmt>>> engines;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    int runs = 10;
+    int warmup = 3;
+    int thresholdPercent = 10;
+
+    // frontEnd compiles a workload's source, along with the modules it
+    // imports, and returns null if there are errors.
+    BenchmarkRunner(BiFunction<Path, ByteBuffer, List<Stmt>> frontEnd,
+            Supplier<Consumer<List<Stmt>>> engines) {
+        this.frontEnd = frontEnd;
+        this.engines = engines;
+    }
+
+    // Runs the workload, or every .lox file in the directory, and reports
+    // on them. Returns false if any of them failed or regressed.
+    boolean run(Path path, Path baseline, Path save) throws IOException {
+        List<Path> workloads;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                workloads = files.filter(file -> file.toString().endsWith(".lox"))
+                        .sorted().toList();
+            }
+        } else {
+            workloads = List.of(path);
+        }
+
+        Map<String, Result> previous = Map.of();
+        if (baseline != null) {
+            try {
+                previous = readBaseline(baseline);
+            } catch (IOException error) {
+                System.err.println("Can't read baseline " + baseline + ".");
+                return false;
+            } catch (IllegalArgumentException error) {
+                System.err.println("Bad baseline " + baseline + ": " + error.getMessage());
+                return false;
+            }
+        }
+        Map<String, Result> results = new TreeMap<>();
+        boolean ok = true;
+
+        System.out.printf("%-20s %10s %10s %12s  %s%n",
+                "workload", "median ms", "p95 ms", "alloc KB", "vs baseline");
+        for (Path workload : workloads) {
+            String name = workload.getFileName().toString().replaceFirst("\\.lox$", "");
+            Result result = measure(workload);
+            if (result == null) {
+                System.out.printf("%-20s failed%n", name);
+                ok = false;
+                continue;
+            }
+            results.put(name, result);
+
+            String comparison = "";
+            Result before = previous.get(name);
+            if (before != null) {
+                double time = change(before.medianMs, result.medianMs);
+                double allocated = change(before.allocatedBytes, result.allocatedBytes);
+                comparison = String.format("time %+.1f%%, alloc %+.1f%%", time, allocated);
+                if (time > thresholdPercent || allocated > thresholdPercent) {
+                    comparison += "  REGRESSION";
+                    ok = false;
+                }
+            }
+            System.out.printf("%-20s %10.2f %10.2f %12d  %s%n", name,
+                    result.medianMs, result.p95Ms, result.allocatedBytes / 1024,
+                    comparison);
+        }
+
+        if (save != null) writeBaseline(save, results);
+        return ok;
+    }
+
+    private static double change(double before, double after) {
+        if (before == 0) return after == 0 ? 0 : 100;
+        return (after - before) / before * 100;
+    }
+
+    // Returns null if the workload doesn't compile or fails at runtime.
+    private Result measure(Path workload) throws IOException {
+        ByteBuffer source;
+        try (FileChannel channel = FileChannel.open(workload)) {
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        long[] times = new long[runs];
+        long[] allocated = new long[runs];
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = -warmup; i < runs; i++) {
+                long bytes = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+
+                List<Stmt> statements = frontEnd.apply(workload, source.duplicate());
+                if (statements == null) return null;
+                engines.get().accept(statements);
+
+                long end = System.nanoTime();
+                if (Lox.hadRuntimeError) return null;
+                if (i >= 0) {
+                    times[i] = end - start;
+                    allocated[i] = threads.getCurrentThreadAllocatedBytes() - bytes;
+                }
+            }
+        } finally {
+            System.setOut(out);
+            Lox.hadError = false;
+            Lox.hadRuntimeError = false;
+        }
+
+        Arrays.sort(times);
+        Arrays.sort(allocated);
+        int p95 = (int) Math.ceil(runs * 0.95) - 1;
+        return new Result(times[runs / 2] / 1e6, times[p95] / 1e6,
+                allocated[runs / 2]);
+    }
+
+    private static void writeBaseline(Path file, Map<String, Result> results)
+            throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            if (json.length() > 2) json.append(",\n");
+            json.append(String.format(Locale.ROOT,
+                    "  \"%s\": {\"median_ms\": %.3f, \"p95_ms\": %.3f, \"allocated_bytes\": %d}",
+                    entry.getKey(), result.medianMs, result.p95Ms,
+                    result.allocatedBytes));
+        }
+        json.append("\n}\n");
+        Files.writeString(file, json);
+    }
+
+    // Reads a baseline in the shape writeBaseline() writes. Throws an
+    // IllegalArgumentException if it isn't one.
+    private static Map<String, Result> readBaseline(Path file) throws IOException {
+        Object json = new JsonReader(Files.readString(file)).document();
+        if (!(json instanceof Map)) {
+            throw new IllegalArgumentException("Expected an object.");
+        }
+
+        Map<String, Result> results = new HashMap<>();
+
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+            if (!(entry.getValue() instanceof Map)) continue;
+            Map<?, ?> fields = (Map<?, ?>) entry.getValue();
+            results.put((String) entry.getKey(), new Result(
+                    number(fields.get("median_ms")),
+                    number(fields.get("p95_ms")),
+                    (long) number(fields.get("allocated_bytes"))));
+        }
+        return results;
+    }
+
+    private static double number(Object value) {
+        return value instanceof Double ? (double) value : 0;
+    }
+
+    // Just enough JSON for a baseline: objects, strings and numbers.
+    private static final class JsonReader {
+        private final String text;
+        private int current = 0;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        // The one value the text holds.
+        Object document() {
+            Object value = value();
+            skipWhitespace();
+            if (current < text.length()) {
+                throw new IllegalArgumentException("Unexpected text at " + current + ".");
+            }
+            return value;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            char c = peek();
+            if (c == '{') return object();
+            if (c == '"') return string();
+            return number();
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> fields = new HashMap<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                current++;
+                return fields;
+            }
+
+            do {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                fields.put(key, value());
+                skipWhitespace();
+            } while (match(','));
+            expect('}');
+            return fields;
+        }
+
+        private String string() {
+            expect('"');
+            int start = current;
+            while (peek() != '"') {
+                if (current == text.length()) {
+                    throw new IllegalArgumentException("Unterminated string.");
+                }
+                current++;
+            }
+            return text.substring(start, current++);
+        }
+
+        private Double number() {
+            int start = current;
+            while (current < text.length()
+                    && "+-.eE0123456789".indexOf(peek()) != -1) {
+                current++;
+            }
+            if (start == current) {
+                throw new IllegalArgumentException("Expected a value at " + current + ".");
+            }
+            try {
+                return Double.parseDouble(text.substring(start, current));
+            } catch (NumberFormatException error) {
+                throw new IllegalArgumentException("Bad number at " + start + ".");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (Character.isWhitespace(peek())) current++;
+        }
+
+        private boolean match(char expected) {
+            if (peek() != expected) return false;
+            current++;
+            return true;
+        }
+
+        private void expect(char expected) {
+            if (!match(expected)) {
+                throw new IllegalArgumentException(
+                        "Expected '" + expected + "' at " + current + ".");
+            }
+        }
+
+        private char peek() {
+            return current < text.length() ? text.charAt(current) : '\0';
+        }
+    }
+}
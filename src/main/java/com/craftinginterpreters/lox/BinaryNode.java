@@ -0,0 +1,290 @@
+package com.craftinginterpreters.lox;
+
+// The executable form of an Expr.Binary. Every Binary starts out
+// uninitialized. The first time it runs, it installs the node that fits
+// its operator and the operand types it saw. A specialized node rewrites
+// itself to the generic one as soon as its type assumption fails, so each
+// site moves through uninitialized -> specialized -> generic at most once.
+//
+// Nodes carry no per-site state, so one instance of each is shared by
+// every Binary in the program.
+abstract class BinaryNode {
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    private static final BinaryNode GENERIC = new Generic();
+
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    private static class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            BinaryNode node = specialize(expr.operator.type, left, right);
+            expr.node = node;
+            return node.execute(expr, left, right);
+        }
+
+        private static BinaryNode specialize(TokenType operator,
+                Object left, Object right) {
+            if (operator == TokenType.EQUAL_EQUAL) return Equal.INSTANCE;
+            if (operator == TokenType.BANG_EQUAL) return NotEqual.INSTANCE;
+
+            if (left instanceof Double && right instanceof Double) {
+                switch (operator) {
+                    case PLUS: return NumberAdd.INSTANCE;
+                    case MINUS: return NumberSubtract.INSTANCE;
+                    case STAR: return NumberMultiply.INSTANCE;
+                    case SLASH: return NumberDivide.INSTANCE;
+                    case GREATER: return NumberGreater.INSTANCE;
+                    case GREATER_EQUAL: return NumberGreaterEqual.INSTANCE;
+                    case LESS: return NumberLess.INSTANCE;
+                    case LESS_EQUAL: return NumberLessEqual.INSTANCE;
+                }
+            }
+
+            if (operator == TokenType.PLUS
+                    && Rope.isString(left) && Rope.isString(right)) {
+                return StringAdd.INSTANCE;
+            }
+
+            return GENERIC;
+        }
+    }
+
+    // A site that has only seen numbers and produces a number. The
+    // Interpreter can evaluate it on doubles without boxing.
+    abstract static class Arithmetic extends BinaryNode {
+        abstract double apply(double left, double right);
+    }
+
+    // A site that has only seen numbers and produces a boolean.
+    abstract static class Comparison extends BinaryNode {
+        abstract boolean test(double left, double right);
+    }
+
+    // Replaces a specialized node whose assumption no longer holds.
+    static Object deoptimize(Expr.Binary expr, Object left, Object right) {
+        expr.node = GENERIC;
+        return GENERIC.execute(expr, left, right);
+    }
+
+    private static class NumberAdd extends Arithmetic {
+        static final BinaryNode INSTANCE = new NumberAdd();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left + (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left + right;
+        }
+    }
+
+    private static class NumberSubtract extends Arithmetic {
+        static final BinaryNode INSTANCE = new NumberSubtract();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left - (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left - right;
+        }
+    }
+
+    private static class NumberMultiply extends Arithmetic {
+        static final BinaryNode INSTANCE = new NumberMultiply();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left * (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left * right;
+        }
+    }
+
+    private static class NumberDivide extends Arithmetic {
+        static final BinaryNode INSTANCE = new NumberDivide();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left / (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left / right;
+        }
+    }
+
+    private static class NumberGreater extends Comparison {
+        static final BinaryNode INSTANCE = new NumberGreater();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left > (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        boolean test(double left, double right) {
+            return left > right;
+        }
+    }
+
+    private static class NumberGreaterEqual extends Comparison {
+        static final BinaryNode INSTANCE = new NumberGreaterEqual();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left >= (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        boolean test(double left, double right) {
+            return left >= right;
+        }
+    }
+
+    private static class NumberLess extends Comparison {
+        static final BinaryNode INSTANCE = new NumberLess();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left < (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        boolean test(double left, double right) {
+            return left < right;
+        }
+    }
+
+    private static class NumberLessEqual extends Comparison {
+        static final BinaryNode INSTANCE = new NumberLessEqual();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left <= (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+
+        @Override
+        boolean test(double left, double right) {
+            return left <= right;
+        }
+    }
+
+    private static class StringAdd extends BinaryNode {
+        static final BinaryNode INSTANCE = new StringAdd();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    // Equality accepts any operand types, so it never needs a guard.
+    private static class Equal extends BinaryNode {
+        static final BinaryNode INSTANCE = new Equal();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return Interpreter.isEqual(left, right);
+        }
+    }
+
+    private static class NotEqual extends BinaryNode {
+        static final BinaryNode INSTANCE = new NotEqual();
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return !Interpreter.isEqual(left, right);
+        }
+    }
+
+    // Handles every operator and operand type, reporting type errors.
+    private static class Generic extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            switch (expr.operator.type) {
+                case MINUS:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left - (double) right;
+                case SLASH:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left / (double) right;
+                case STAR:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left * (double) right;
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double) left + (double) right;
+                    }
+
+                    if (Rope.isString(left) && Rope.isString(right)) {
+                        return Rope.concat(left, right);
+                    }
+                    return left.toString() + right.toString();
+                case GREATER:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left > (double) right;
+                case GREATER_EQUAL:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left >= (double) right;
+                case LESS:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left < (double) right;
+                case LESS_EQUAL:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left <= (double) right;
+                case BANG_EQUAL:
+                    return !Interpreter.isEqual(left, right);
+                case EQUAL_EQUAL:
+                    return Interpreter.isEqual(left, right);
+            }
+
+            // Unreachable.
+            return null;
+        }
+
+        private static void checkNumberOperands(Token operator,
+                Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return;
+            } else {
+                throw new RuntimeError(operator, "Oprands must be numbers.");
+            }
+        }
+    }
+}
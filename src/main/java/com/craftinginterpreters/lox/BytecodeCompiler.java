@@ -0,0 +1,666 @@
+package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Compiles a resolved syntax tree to bytecode for the VM. Variable
+// references reuse the Resolver's (depth, slot) results: the compiler
+// keeps a stack of scopes that mirrors the Resolver's, and records where
+// each scope's locals start on the owning function's stack frame.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+
+        // Slot 0 holds the closure itself, or the receiver in a method.
+        int localCount = 1;
+        // The local slots a closure has captured.
+        final BitSet captured = new BitSet();
+        final List<Integer> upvalues = new ArrayList<>();
+
+        // Simulated stack height, used to size the frame.
+        int stackDepth = 1;
+
+        FunctionState(FunctionState enclosing, VmFunction function,
+                FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private static class Scope {
+        final FunctionState function;
+        // Stack slot of the scope's first local within its function.
+        final int base;
+
+        Scope(FunctionState function, int base) {
+            this.function = function;
+            this.base = base;
+        }
+    }
+
+    // Locals, upvalues, constants and globals are numbered by u16 operands.
+    private static final int MAX_INDEX = 0xffff;
+
+    private final VM vm;
+    private final Stack<Scope> scopes = new Stack<>();
+    private FunctionState current = null;
+    private int line = 1;
+    // The limits already reported, so each is only reported once.
+    private final Set<String> exceeded = new HashSet<>();
+
+    BytecodeCompiler(VM vm) {
+        this.vm = vm;
+    }
+
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null, 0),
+                FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return endFunction().function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private FunctionState endFunction() {
+        FunctionState state = current;
+        state.function.upvalueCount = state.upvalues.size();
+        state.function.chunk.seal();
+        current = state.enclosing;
+        return state;
+    }
+
+    // Statements.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // Scopes mirror the Resolver's, which skips blocks without locals.
+        if (stmt.frameSize == 0) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    private void beginScope() {
+        scopes.push(new Scope(current, current.localCount));
+    }
+
+    private void endScope() {
+        Scope scope = scopes.pop();
+        while (current.localCount > scope.base) {
+            int slot = --current.localCount;
+            if (current.captured.get(slot)) {
+                emit(OP_CLOSE_UPVALUE, -1);
+                current.captured.clear(slot);
+            } else {
+                emit(OP_POP, -1);
+            }
+        }
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        boolean global = scopes.isEmpty();
+        int slot = current.localCount;
+        emitShort(OP_CLASS, makeConstant(stmt.name.lexeme), 1);
+        defineVariable(stmt.name);
+
+        // The superclass stays on the stack as the only local of a scope
+        // around the methods, mirroring the Resolver's "super" scope.
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal(stmt.superclass.name);
+
+            loadClass(stmt.name, global, slot);
+            line = stmt.superclass.name.line;
+            emit(OP_INHERIT, -1);
+        }
+
+        // Load the class back so each method can be attached to it.
+        loadClass(stmt.name, global, slot);
+
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            line = method.name.line;
+            emitShort(OP_METHOD, makeConstant(method.name.lexeme), -1);
+        }
+
+        emit(OP_POP, -1);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    private void loadClass(Token name, boolean global, int slot) {
+        line = name.line;
+        if (global) {
+            emitShort(OP_GET_GLOBAL, global(name), 1);
+        } else {
+            emitShort(OP_GET_LOCAL, slot, 1);
+        }
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OP_POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Claim the local slot first so the body can refer to itself.
+        boolean local = !scopes.isEmpty();
+        if (local) addLocal(stmt.name);
+
+        function(stmt, FunctionType.FUNCTION);
+
+        if (!local) {
+            line = stmt.name.line;
+            emitShort(OP_DEFINE_GLOBAL, global(stmt.name), -1);
+        }
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        current = new FunctionState(current,
+                new VmFunction(stmt.name.lexeme, stmt.params.size()), type);
+
+        // A method's "this" is the first local in its scope, which lines up
+        // with the receiver in slot 0. A function's slot 0 is unnamed.
+        scopes.push(new Scope(current, type == FunctionType.FUNCTION ? 1 : 0));
+
+        for (Token param : stmt.params) {
+            addLocal(param);
+            current.stackDepth++;
+        }
+        updateMaxStack();
+
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+
+        scopes.pop();
+
+        FunctionState state = endFunction();
+        line = stmt.name.line;
+        emitShort(OP_CLOSURE, makeConstant(state.function), 1);
+        for (int upvalue : state.upvalues) {
+            Chunk chunk = current.function.chunk;
+            chunk.write(upvalue >> 16, line);
+            chunk.write(upvalue >> 8, line);
+            chunk.write(upvalue, line);
+        }
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP, -1);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OP_JUMP);
+        patchJump(thenJump);
+        // The condition is still on the stack along the else path.
+        current.stackDepth++;
+        emit(OP_POP, -1);
+
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // The module runs inline, at top level, where its import is linked.
+        if (stmt.module == null) return null;
+        for (Stmt statement : stmt.module.statements) {
+            compile(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OP_PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            line = stmt.keyword.line;
+            emitReturn();
+        } else if (stmt.tailCall && isPlainCall((Expr.Call) stmt.value)) {
+            // The callee takes over this frame. The return that follows
+            // only runs when it is a native function or a class.
+            Expr.Call call = (Expr.Call) stmt.value;
+            compile(call.callee);
+            for (Expr argument : call.arguments) {
+                compile(argument);
+            }
+            line = call.paren.line;
+            emitByte(OP_TAIL_CALL, call.arguments.size(), -call.arguments.size());
+            line = stmt.keyword.line;
+            emit(OP_RETURN, -1);
+        } else {
+            compile(stmt.value);
+            line = stmt.keyword.line;
+            emit(OP_RETURN, -1);
+        }
+        return null;
+    }
+
+    private static boolean isPlainCall(Expr.Call call) {
+        return !(call.callee instanceof Expr.Get)
+                && !(call.callee instanceof Expr.Super);
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OP_NIL, 1);
+        }
+
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    // Turns the value on top of the stack into the named variable. A
+    // local simply stays where it is, in the next slot of the frame.
+    private void defineVariable(Token name) {
+        if (scopes.isEmpty()) {
+            emitShort(OP_DEFINE_GLOBAL, global(name), -1);
+        } else {
+            addLocal(name);
+        }
+    }
+
+    private void addLocal(Token name) {
+        if (current.localCount > MAX_INDEX) {
+            line = name.line;
+            exceeded("Too many local variables in function.");
+            return;
+        }
+        current.localCount++;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.frameSize > 0) beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP, -1);
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OP_POP, -1);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        current.stackDepth++;
+        emit(OP_POP, -1);
+
+        if (stmt.frameSize > 0) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP, -1);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        current.stackDepth++;
+        emit(OP_POP, -1);
+        return null;
+    }
+
+    // Expressions.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        variable(expr.name, expr.depth, expr.slot, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                emit(OP_EQUAL, -1);
+                emit(OP_NOT, 0);
+                break;
+            case EQUAL_EQUAL: emit(OP_EQUAL, -1); break;
+            case GREATER: emit(OP_GREATER, -1); break;
+            case GREATER_EQUAL: emit(OP_GREATER_EQUAL, -1); break;
+            case LESS: emit(OP_LESS, -1); break;
+            case LESS_EQUAL: emit(OP_LESS_EQUAL, -1); break;
+            case PLUS: emit(OP_ADD, -1); break;
+            case MINUS: emit(OP_SUBTRACT, -1); break;
+            case STAR: emit(OP_MULTIPLY, -1); break;
+            case SLASH: emit(OP_DIVIDE, -1); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // A method call skips creating a bound method object.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+            line = expr.paren.line;
+            emitShort(OP_INVOKE, makeConstant(get.name.lexeme),
+                    -expr.arguments.size());
+            current.function.chunk.write(expr.arguments.size(), line);
+            return null;
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            line = callee.keyword.line;
+            variable(callee.keyword, callee.thisDepth, 0, false);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+            line = callee.keyword.line;
+            variable(callee.keyword, callee.depth, callee.slot, false);
+            line = expr.paren.line;
+            emitShort(OP_SUPER_INVOKE, makeConstant(callee.method.lexeme),
+                    -expr.arguments.size() - 1);
+            current.function.chunk.write(expr.arguments.size(), line);
+            return null;
+        }
+
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitByte(OP_CALL, expr.arguments.size(), -expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitShort(OP_GET_PROPERTY, makeConstant(expr.name.lexeme), 0);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OP_NIL, 1);
+        } else if (expr.value == Boolean.TRUE) {
+            emit(OP_TRUE, 1);
+        } else if (expr.value == Boolean.FALSE) {
+            emit(OP_FALSE, 1);
+        } else {
+            emitShort(OP_CONSTANT, makeConstant(expr.value), 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+            patchJump(elseJump);
+            emit(OP_POP, -1);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+            emit(OP_POP, -1);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitShort(OP_SET_PROPERTY, makeConstant(expr.name.lexeme), -1);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        variable(expr.keyword, expr.thisDepth, 0, false);
+        variable(expr.keyword, expr.depth, expr.slot, false);
+        line = expr.method.line;
+        emitShort(OP_GET_SUPER, makeConstant(expr.method.lexeme), -1);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        variable(expr.keyword, expr.depth, expr.slot, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS: emit(OP_NEGATE, 0); break;
+            case BANG: emit(OP_NOT, 0); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        variable(expr.name, expr.depth, expr.slot, false);
+        return null;
+    }
+
+    private void variable(Token name, int depth, int slot, boolean assign) {
+        if (depth == -1) {
+            int global = global(name);
+            emitShort(assign ? OP_SET_GLOBAL : OP_GET_GLOBAL, global,
+                    assign ? 0 : 1);
+            return;
+        }
+
+        Scope scope = scopes.get(scopes.size() - 1 - depth);
+        int index = scope.base + slot;
+        if (scope.function == current) {
+            emitShort(assign ? OP_SET_LOCAL : OP_GET_LOCAL, index,
+                    assign ? 0 : 1);
+        } else {
+            int upvalue = resolveUpvalue(current, scope.function, index);
+            emitShort(assign ? OP_SET_UPVALUE : OP_GET_UPVALUE, upvalue,
+                    assign ? 0 : 1);
+        }
+    }
+
+    // Threads a captured local from the function that owns it down
+    // through every function in between, returning the upvalue index in
+    // the innermost one.
+    private int resolveUpvalue(FunctionState function, FunctionState owner,
+            int index) {
+        if (function.enclosing == owner) {
+            owner.captured.set(index);
+            return addUpvalue(function, true, index);
+        }
+
+        int upvalue = resolveUpvalue(function.enclosing, owner, index);
+        return addUpvalue(function, false, upvalue);
+    }
+
+    private int addUpvalue(FunctionState function, boolean isLocal, int index) {
+        int encoded = (isLocal ? 1 << 16 : 0) | index;
+        int existing = function.upvalues.indexOf(encoded);
+        if (existing != -1) return existing;
+
+        if (function.upvalues.size() > MAX_INDEX) {
+            exceeded("Too many closure variables in function.");
+            return 0;
+        }
+        function.upvalues.add(encoded);
+        return function.upvalues.size() - 1;
+    }
+
+    // Emitting.
+
+    private void emit(byte op, int stackEffect) {
+        current.function.chunk.write(op, line);
+        current.stackDepth += stackEffect;
+        updateMaxStack();
+    }
+
+    private void emitByte(byte op, int operand, int stackEffect) {
+        emit(op, stackEffect);
+        current.function.chunk.write(operand, line);
+    }
+
+    private void emitShort(byte op, int operand, int stackEffect) {
+        emit(op, stackEffect);
+        current.function.chunk.write(operand >> 8, line);
+        current.function.chunk.write(operand & 0xff, line);
+    }
+
+    private void emitInt(byte op, int operand) {
+        emitShort(op, operand >>> 16, 0);
+        current.function.chunk.write(operand >> 8, line);
+        current.function.chunk.write(operand & 0xff, line);
+    }
+
+    private void updateMaxStack() {
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitShort(OP_GET_LOCAL, 0, 1);
+        } else {
+            emit(OP_NIL, 1);
+        }
+        emit(OP_RETURN, -1);
+    }
+
+    // Jump offsets take four bytes, so no body is too long to jump over.
+    private int emitJump(byte op) {
+        emitInt(op, -1);
+        return current.function.chunk.count - 4;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 4;
+        chunk.code[offset] = (byte) (jump >> 24);
+        chunk.code[offset + 1] = (byte) (jump >> 16);
+        chunk.code[offset + 2] = (byte) (jump >> 8);
+        chunk.code[offset + 3] = (byte) jump;
+    }
+
+    private void emitLoop(int loopStart) {
+        emitInt(OP_LOOP, current.function.chunk.count + 5 - loopStart);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = current.function.chunk.addConstant(value);
+        if (constant > MAX_INDEX) {
+            exceeded("Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private int global(Token name) {
+        int global = vm.globalSlot(name.lexeme);
+        if (global > MAX_INDEX) {
+            line = name.line;
+            exceeded("Too many global variables.");
+            return 0;
+        }
+        return global;
+    }
+
+    // Reports a limit of the bytecode format the first time the program
+    // goes past it. The program can't run, so once is enough.
+    private void exceeded(String message) {
+        if (exceeded.add(message)) Lox.error(line, message);
+    }
+}
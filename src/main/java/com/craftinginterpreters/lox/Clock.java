@@ -0,0 +1,26 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// The clock() native, seconds since the epoch. Natives are plain named
+// classes, never reflection, so a native image needs no configuration.
+final class Clock implements LoxCallable {
+    static double now() {
+        return (double) System.currentTimeMillis() / 1000.0;
+    }
+
+    @Override
+    public int arity() {
+        return 0;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return now();
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,84 @@
+package com.craftinginterpreters.lox;
+
+// A for loop of the form
+//
+//     for (var i = start; i < bound; i = i + step) body
+//
+// where the step is a number literal, the comparison is any of < <= > >=,
+// and the increment may subtract instead. If the body never assigns i and
+// nothing captures it, the loop can keep i in a Java double and only box
+// it into the loop's frame when the body reads it.
+class CountedLoop {
+    final Expr bound;
+    final Token operator;
+    final double step;
+
+    // Whether anything besides the loop header reads the counter.
+    boolean counterRead;
+
+    private CountedLoop(Expr bound, Token operator, double step) {
+        this.bound = bound;
+        this.operator = operator;
+        this.step = step;
+    }
+
+    // Matches the shape of the loop. Whether the body leaves the counter
+    // alone is up to the Resolver.
+    static CountedLoop match(Stmt.For loop) {
+        if (!(loop.initializer instanceof Stmt.Var)) return null;
+        String counter = ((Stmt.Var) loop.initializer).name.lexeme;
+        if (((Stmt.Var) loop.initializer).initializer == null) return null;
+
+        if (!(loop.condition instanceof Expr.Binary)) return null;
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        switch (condition.operator.type) {
+            case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        if (!isVariable(condition.left, counter)) return null;
+
+        if (!(loop.increment instanceof Expr.Assign)) return null;
+        Expr.Assign increment = (Expr.Assign) loop.increment;
+        if (!increment.name.lexeme.equals(counter)) return null;
+        if (!(increment.value instanceof Expr.Binary)) return null;
+        Expr.Binary sum = (Expr.Binary) increment.value;
+        if (!isVariable(sum.left, counter)) return null;
+        if (!(sum.right instanceof Expr.Literal)) return null;
+        Object step = ((Expr.Literal) sum.right).value;
+        if (!(step instanceof Double)) return null;
+
+        switch (sum.operator.type) {
+            case PLUS:
+                return new CountedLoop(condition.right, condition.operator,
+                        (double) step);
+            case MINUS:
+                return new CountedLoop(condition.right, condition.operator,
+                        -(double) step);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable
+                && ((Expr.Variable) expr).name.lexeme.equals(name);
+    }
+
+    // Compares the counter with the bound, failing the same way the
+    // comparison in the loop's condition would.
+    boolean test(double counter, Object bound) {
+        if (!(bound instanceof Double)) {
+            throw new RuntimeError(operator, "Oprands must be numbers.");
+        }
+
+        double limit = (double) bound;
+        switch (operator.type) {
+            case LESS: return counter < limit;
+            case LESS_EQUAL: return counter <= limit;
+            case GREATER: return counter > limit;
+            default: return counter >= limit;
+        }
+    }
+}
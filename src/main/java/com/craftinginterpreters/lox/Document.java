@@ -0,0 +1,282 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A source file kept scanned, parsed and resolved while it is edited, for
+// editors and other tools. The text is split into its top-level
+// declarations, each covering its tokens and the whitespace and comments
+// after them. An edit only scans and parses again from the declaration
+// before the ones it touches, since that one may have looked at their
+// first token, up to the first old declaration the new parse lines up
+// with. Every declaration after that is kept as it was, tree and
+// resolution included.
+//
+// Offsets are in bytes of the UTF-8 text. The tokens in a kept tree, and
+// its errors, still have the lines they were parsed on, so use
+// Declaration.line() to find where they are now.
+//
+// Errors are kept with the declaration they are in rather than printed,
+// and nothing is shared between documents, so several can be edited on
+// different threads.
+class Document {
+    // An error the Scanner, Parser or Resolver found.
+    static final class Diagnostic {
+        final int line;
+        // Empty, or names the token the error is at, like " at 'x'".
+        final String where;
+        final String message;
+
+        private Diagnostic(int line, String where, String message) {
+            this.line = line;
+            this.where = where;
+            this.message = message;
+        }
+    }
+
+    static final class Declaration {
+        // Null if the declaration failed to parse.
+        final Stmt statement;
+        final List<Diagnostic> errors;
+        final boolean hadError;
+        private int start;
+        private int end;
+        // The line the declaration starts on.
+        private int line;
+        // How far its tokens' lines have moved since it was parsed.
+        private int shift = 0;
+
+        private Declaration(Stmt statement, List<Diagnostic> errors, int start,
+                int end, int line) {
+            this.statement = statement;
+            this.errors = errors;
+            this.hadError = !errors.isEmpty();
+            this.start = start;
+            this.end = end;
+            this.line = line;
+        }
+
+        int start() {
+            return start;
+        }
+
+        int end() {
+            return end;
+        }
+
+        // The line a token in the declaration's tree is on now.
+        int line(Token token) {
+            return token.line + shift;
+        }
+
+        // The line an error in the declaration is on now.
+        int line(Diagnostic error) {
+            return error.line + shift;
+        }
+    }
+
+    private byte[] source;
+    private final List<Declaration> declarations = new ArrayList<>();
+
+    Document(String text) {
+        source = text.getBytes(StandardCharsets.UTF_8);
+        reparse(0, 0, 0, 0);
+    }
+
+    List<Declaration> declarations() {
+        return Collections.unmodifiableList(declarations);
+    }
+
+    // The statements of the declarations without syntax errors, in order.
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            if (declaration.statement != null) {
+                statements.add(declaration.statement);
+            }
+        }
+        return statements;
+    }
+
+    boolean hadError() {
+        for (Declaration declaration : declarations) {
+            if (declaration.hadError) return true;
+        }
+        return false;
+    }
+
+    String text() {
+        return new String(source, StandardCharsets.UTF_8);
+    }
+
+    // Replaces the bytes from start up to end with the replacement.
+    void edit(int start, int end, String replacement) {
+        if (start < 0 || start > end || end > source.length) {
+            throw new IndexOutOfBoundsException(
+                    "Bad edit range " + start + ".." + end + ".");
+        }
+
+        byte[] inserted = replacement.getBytes(StandardCharsets.UTF_8);
+        int delta = inserted.length - (end - start);
+        int lineDelta = newlines(inserted, 0, inserted.length)
+                - newlines(source, start, end);
+
+        byte[] edited = new byte[source.length + delta];
+        System.arraycopy(source, 0, edited, 0, start);
+        System.arraycopy(inserted, 0, edited, start, inserted.length);
+        System.arraycopy(source, end, edited, start + inserted.length,
+                source.length - end);
+        source = edited;
+
+        // The declaration before the edit may end differently now, so
+        // parsing starts there.
+        int first = Math.max(0, find(start) - 1);
+        reparse(first, find(end) + 1, delta, lineDelta);
+    }
+
+    // Parses from the start of declaration first again. Old declarations
+    // from index after on, moved by delta bytes and lineDelta lines, are
+    // kept once the new parse reaches the start of one of them.
+    private void reparse(int first, int after, int delta, int lineDelta) {
+        int from = 0;
+        int line = 1;
+        if (first < declarations.size()) {
+            from = declarations.get(first).start;
+            line = declarations.get(first).line;
+        }
+
+        // Try to line up within the declaration after the edit. Failing
+        // that, say when the edit opened a string, parse the rest. Only
+        // what the first try printed can then be repeated or, for a string
+        // it cut short, wrong. The declarations come from the second.
+        int limit = after < declarations.size()
+                ? declarations.get(after).end + delta : source.length;
+        List<Declaration> parsed = new ArrayList<>();
+        int kept = parse(from, limit, line, after, delta, parsed);
+        if (kept == -1 && limit < source.length) {
+            parsed.clear();
+            kept = parse(from, source.length, line, after, delta, parsed);
+        }
+        if (kept == -1) kept = declarations.size();
+
+        for (int i = kept; i < declarations.size(); i++) {
+            Declaration declaration = declarations.get(i);
+            declaration.start += delta;
+            declaration.end += delta;
+            declaration.line += lineDelta;
+            declaration.shift += lineDelta;
+        }
+        declarations.subList(first, kept).clear();
+        declarations.addAll(first, parsed);
+
+        // Keep the declarations covering the whole text.
+        if (declarations.isEmpty()) return;
+        declarations.get(declarations.size() - 1).end = source.length;
+        if (first > 0) {
+            declarations.get(first - 1).end = first < declarations.size()
+                    ? declarations.get(first).start : source.length;
+        } else {
+            declarations.get(0).start = 0;
+            declarations.get(0).line = 1;
+        }
+    }
+
+    // Parses the declarations from one up to the limit, adding them to
+    // parsed. Stops and returns an old declaration's index as soon as the
+    // next token starts where that declaration, from index after on, now
+    // starts. Returns -1 if it reached the limit instead.
+    private int parse(int from, int limit, int line, int after, int delta,
+            List<Declaration> parsed) {
+        List<Diagnostic> scanErrors = new ArrayList<>();
+        TokenBuffer tokens = new Scanner(
+                ByteBuffer.wrap(source, from, limit - from), line,
+                (errorLine, where, message) -> scanErrors.add(
+                        new Diagnostic(errorLine, where, message))).scanTokens();
+
+        List<Diagnostic> errors = new ArrayList<>();
+        ErrorReporter reporter = (errorLine, where, message) ->
+                errors.add(new Diagnostic(errorLine, where, message));
+        Parser parser = new Parser(tokens, reporter);
+        Resolver resolver = new Resolver(reporter);
+        // Scanning errors go with the declaration they are in. The Scanner
+        // recorded where each one was, in the order it reported them.
+        List<Integer> scanOffsets = tokens.errors();
+        int scanned = 0;
+
+        int start = from;
+        int kept = -1;
+        while (tokens.type(parser.position()) != TokenType.EOF) {
+            // A declaration the Parser recovered inside of may have holes.
+            Stmt statement = parser.parseDeclaration();
+            if (!errors.isEmpty()) statement = null;
+            if (statement != null) resolver.resolve(List.of(statement));
+
+            int next = parser.position();
+            int end = tokens.type(next) == TokenType.EOF
+                    ? limit : from + tokens.start(next);
+            List<Diagnostic> found = new ArrayList<>();
+            while (scanned < scanOffsets.size() && from + scanOffsets.get(scanned) < end) {
+                found.add(scanErrors.get(scanned++));
+            }
+            found.addAll(errors);
+            errors.clear();
+            parsed.add(new Declaration(statement, found, start, end, line));
+
+            line += newlines(source, start, end);
+            start = end;
+
+            if (tokens.type(next) != TokenType.EOF) {
+                kept = startingAt(end - delta, after);
+                if (kept != -1) break;
+            }
+        }
+
+        return kept;
+    }
+
+    // The index of the declaration from index after on that started at
+    // the offset before the edit, or -1 if none did.
+    private int startingAt(int offset, int after) {
+        int low = after;
+        int high = declarations.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int start = declarations.get(middle).start;
+            if (start < offset) {
+                low = middle + 1;
+            } else if (start > offset) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // The index of the last declaration starting at or before the offset,
+    // or 0 if there is none.
+    private int find(int offset) {
+        int low = 0;
+        int high = declarations.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (declarations.get(middle).start <= offset) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private static int newlines(byte[] bytes, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') count++;
+        }
+        return count;
+    }
+}
@@ -1,31 +1,77 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 class Environment {
     final Environment enclosing;
 
+    // The global scope is keyed by symbol since it can be redefined at any
+    // time. Every local scope has a fixed layout computed by the Resolver,
+    // so its variables live in an array indexed by slot.
+    private final SymbolMap<Global> values;
+    private final Object[] slots;
+    private int count = 0;
+
     Environment() {
         enclosing = null;
+        values = new SymbolMap<>();
+        slots = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[size];
+    }
+
+    // A global's storage. Once created, a name keeps its cell for good, so
+    // compiled code can hold on to the cell instead of looking up the name.
+    static class Global {
+        Object value;
+
+        // Set while compiled code assumes the value will not change.
+        Assumption stable;
+        // How many times changing the value discarded compiled code.
+        int deoptimizations = 0;
+
+        Assumption stable() {
+            if (stable == null) stable = new Assumption();
+            return stable;
+        }
+
+        void set(Object value) {
+            this.value = value;
+            if (stable != null) {
+                stable.invalidate();
+                stable = null;
+                deoptimizations++;
+            }
+        }
     }
 
-    private final Map<String, Object> values = new HashMap<>();
+    void define(int name, Object value) {
+        if (slots == null) {
+            Global global = values.get(name);
+            if (global == null) {
+                global = new Global();
+                values.put(name, global);
+            }
+            global.set(value);
+            return;
+        }
+
+        defineLocal(value);
+    }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    // Locals are declared in the same order the Resolver numbered them.
+    void defineLocal(Object value) {
+        slots[count++] = value;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -37,12 +83,9 @@ class Environment {
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) {
-            return enclosing.get(name);
+        Global global = values.get(name.symbol);
+        if (global != null) {
+            return global.value;
         }
 
         throw new RuntimeError(name, "Undefined variable '"
@@ -50,17 +93,18 @@ class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        Global global = values.get(name.symbol);
+        if (global != null) {
+            global.set(value);
             return;
         }
 
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'.");
     }
+
+    // The cell for a global, or null if it has never been defined.
+    Global global(int name) {
+        return values.get(name);
+    }
 }
@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+// Where the Scanner, Parser and Resolver send the errors they find. Lox
+// prints them, and a Document keeps them with the declaration they are in.
+interface ErrorReporter {
+    // Where is empty, or names the token the error is at, like " at 'x'".
+    void report(int line, String where, String message);
+
+    default void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    default void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+}
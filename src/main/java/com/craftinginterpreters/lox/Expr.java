@@ -12,6 +12,7 @@ abstract class Expr{
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
     R visitSetExpr(Set expr);
+    R visitSuperExpr(Super expr);
     R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
@@ -29,6 +30,9 @@ abstract class Expr{
 
     final Token name;
     final Expr value;
+
+    int depth = -1;
+    int slot;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -45,6 +49,8 @@ abstract class Expr{
     final Expr left;
     final Token operator;
     final Expr right;
+
+    BinaryNode node = BinaryNode.UNINITIALIZED;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -75,6 +81,8 @@ abstract class Expr{
 
     final Expr object;
     final Token name;
+
+    PropertyCache cache = new PropertyCache();
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -131,6 +139,28 @@ abstract class Expr{
     final Expr object;
     final Token name;
     final Expr value;
+
+    PropertyCache cache = new PropertyCache();
+  }
+  static class Super extends Expr {
+    Super(Token keyword, Token method) {
+      this.keyword = keyword;
+      this.method = method;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSuperExpr(this);
+    }
+
+    final Token keyword;
+    final Token method;
+
+    int depth = -1;
+    int slot;
+    int thisDepth;
+    LoxClass cachedClass;
+    LoxFunction cachedMethod;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -143,6 +173,9 @@ abstract class Expr{
     }
 
     final Token keyword;
+
+    int depth = -1;
+    int slot;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -157,6 +190,8 @@ abstract class Expr{
 
     final Token operator;
     final Expr right;
+
+    UnaryNode node = UnaryNode.UNINITIALIZED;
   }
   static class Variable extends Expr {
     Variable(Token name) {
@@ -169,6 +204,9 @@ abstract class Expr{
     }
 
     final Token name;
+
+    int depth = -1;
+    int slot;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
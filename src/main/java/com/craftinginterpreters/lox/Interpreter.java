@@ -2,23 +2,18 @@ package com.craftinginterpreters.lox;
 
 import java.util.*;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Jit jit = new Jit(this);
+
+    // What a statement returns when it completes normally. Any other
+    // result is the value of a return statement, which every enclosing
+    // statement passes up unchanged until it reaches the function call.
+    static final Object NORMAL = new Object();
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            };
-
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
-        });
+        globals.define(Symbols.intern("clock"), new Clock());
     }
 
     void interpret(List<Stmt> statements) {
@@ -31,35 +26,34 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
-    }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.frameSize == 0) return executeBlock(stmt.statements, environment);
+        return executeBlock(stmt.statements,
+                new Environment(environment, stmt.frameSize));
     }
 
-    void executeBlock(List<Stmt> statements,
+    Object executeBlock(List<Stmt> statements,
             Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Object result = execute(statement);
+                if (result != NORMAL) return result;
             }
+            return NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null)
             return "nil";
 
@@ -75,37 +69,42 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitImportStmt(Stmt.Import stmt) {
+        // Only the import the module was linked to runs it.
+        if (stmt.module == null) return NORMAL;
+        return executeBlock(stmt.module.statements, environment);
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        environment.define(stmt.name.symbol, value);
+        return NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-
-        if(distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if(expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -117,33 +116,23 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double) right;
-            case BANG:
-                return !isTruthy(right);
-        }
-
-        // Unreachable.
-        return null;
+        return expr.node.execute(expr, right);
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
+        return lookupVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookupVariable(Token name, int depth, int slot) {
+        if (depth != -1) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         } else if (object instanceof Boolean) {
@@ -160,67 +149,94 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        // A numeric site computes on unboxed doubles all the way down its
+        // numeric subexpressions, and boxes the result only here, where it
+        // escapes.
+        if (expr.node instanceof BinaryNode.Arithmetic) {
+            double result = evaluateArithmetic(expr);
+            if (boxed != UNBOXED) return takeBoxed();
+            return result;
+        }
+        if (expr.node instanceof BinaryNode.Comparison) {
+            return evaluateComparison(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
+        return expr.node.execute(expr, left, right);
+    }
 
-                if (left instanceof String && right instanceof String) {
-                    return left + (String) right;
-                }
-                return left.toString() + right.toString();
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-        }
-
-        // Unreachable.
-        return null;
-    }
-
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) {
-            return;
-        } else {
-            throw new RuntimeError(operator, "Oprand must be a number.");
+    // Set by the unboxed path when a value turns out not to be a number,
+    // to the boxed value it produced instead, and taken by the caller of
+    // evaluateDouble() right away, so nothing is evaluated twice.
+    private static final Object UNBOXED = new Object();
+    private Object boxed = UNBOXED;
+
+    private Object takeBoxed() {
+        Object value = boxed;
+        boxed = UNBOXED;
+        return value;
+    }
+
+    private double evaluateDouble(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
         }
+
+        if (expr instanceof Expr.Binary
+                && ((Expr.Binary) expr).node instanceof BinaryNode.Arithmetic) {
+            return evaluateArithmetic((Expr.Binary) expr);
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double) value;
+        boxed = value;
+        return 0;
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) {
-            return;
-        } else {
-            throw new RuntimeError(operator, "Oprands must be numbers.");
+    private double evaluateArithmetic(Expr.Binary expr) {
+        BinaryNode.Arithmetic node = (BinaryNode.Arithmetic) expr.node;
+
+        double left = evaluateDouble(expr.left);
+        if (boxed != UNBOXED) {
+            Object boxedLeft = takeBoxed();
+            Object right = evaluate(expr.right);
+            boxed = BinaryNode.deoptimize(expr, boxedLeft, right);
+            return 0;
         }
+
+        double right = evaluateDouble(expr.right);
+        if (boxed != UNBOXED) {
+            boxed = BinaryNode.deoptimize(expr, left, takeBoxed());
+            return 0;
+        }
+
+        return node.apply(left, right);
     }
 
-    private boolean isEqual(Object a, Object b) {
+    private boolean evaluateComparison(Expr.Binary expr) {
+        BinaryNode.Comparison node = (BinaryNode.Comparison) expr.node;
+
+        // The generic comparison either produces a boolean or throws.
+        double left = evaluateDouble(expr.left);
+        if (boxed != UNBOXED) {
+            Object boxedLeft = takeBoxed();
+            Object right = evaluate(expr.right);
+            return (boolean) BinaryNode.deoptimize(expr, boxedLeft, right);
+        }
+
+        double right = evaluateDouble(expr.right);
+        if (boxed != UNBOXED) {
+            return (boolean) BinaryNode.deoptimize(expr, left, takeBoxed());
+        }
+
+        return node.test(left, right);
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        a = Rope.flatten(a);
+        b = Rope.flatten(b);
         if (a == null && b == null) {
             return true;
         } else if (a == null) {
@@ -239,15 +255,24 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
+    // Evaluates a condition without boxing when it is a numeric comparison.
+    private boolean evaluateCondition(Expr condition) {
+        if (condition instanceof Expr.Binary
+                && ((Expr.Binary) condition).node instanceof BinaryNode.Comparison) {
+            return evaluateComparison((Expr.Binary) condition);
+        }
+        return isTruthy(evaluate(condition));
+    }
+
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+    public Object visitIfStmt(Stmt.If stmt) {
+        if (evaluateCondition(stmt.condition)) {
+            return execute(stmt.thenBranch);
         } else {
             if (stmt.elseBranch != null)
-                execute(stmt.elseBranch);
+                return execute(stmt.elseBranch);
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
@@ -264,71 +289,266 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Object visitWhileStmt(Stmt.While stmt) {
+        if (stmt.jit != jit) jit.claim(stmt);
+        if (stmt.compiled != null) {
+            return stmt.compiled.run(environment);
+        }
+
+        while (evaluateCondition(stmt.condition)) {
+            Object result = execute(stmt.body);
+            if (result != NORMAL) return result;
+
+            // A loop that gets hot finishes its remaining iterations in
+            // compiled code.
+            if (jit.enabled && ++stmt.hotness == jit.loopThreshold) {
+                return jit.compile(stmt).run(environment);
+            }
+        }
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitForStmt(Stmt.For stmt) {
+        Environment previous = environment;
+        try {
+            if (stmt.frameSize > 0) {
+                environment = new Environment(environment, stmt.frameSize);
+            }
+            if (stmt.initializer != null) execute(stmt.initializer);
+
+            if (stmt.jit != jit) jit.claim(stmt);
+            if (stmt.compiled != null) {
+                return stmt.compiled.run(environment);
+            }
+
+            if (stmt.counted != null) {
+                Object start = environment.getAt(0, 0);
+                if (start instanceof Double) {
+                    return countedLoop(stmt, (double) start);
+                }
+            }
+
+            while (evaluateCondition(stmt.condition)) {
+                Object result = execute(stmt.body);
+                if (result != NORMAL) return result;
+                if (stmt.increment != null) evaluate(stmt.increment);
+
+                if (jit.enabled && ++stmt.hotness == jit.loopThreshold) {
+                    return jit.compile(stmt).run(environment);
+                }
+            }
+            return NORMAL;
+        } finally {
+            environment = previous;
+        }
+    }
+
+    // Runs a counted loop with its counter in a local double. The loop's
+    // frame only gets the counter when the body reads it, or when the
+    // rest of the loop moves to compiled code.
+    private Object countedLoop(Stmt.For stmt, double counter) {
+        CountedLoop loop = stmt.counted;
+        while (loop.test(counter, evaluate(loop.bound))) {
+            if (loop.counterRead) environment.assignAt(0, 0, counter);
+            Object result = execute(stmt.body);
+            if (result != NORMAL) return result;
+            counter += loop.step;
+
+            if (jit.enabled && ++stmt.hotness == jit.loopThreshold) {
+                environment.assignAt(0, 0, counter);
+                return jit.compile(stmt).run(environment);
+            }
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(expr, false);
+    }
+
+    // A call in tail position does everything up to entering a Lox
+    // function, and then hands that function back as a TailCall for the
+    // LoxFunction whose frame is ending to run in its place.
+    private Object call(Expr.Call expr, boolean tail) {
+        try {
+            if (expr.callee instanceof Expr.Get) {
+                return invoke((Expr.Get) expr.callee, expr, tail);
+            }
+            if (expr.callee instanceof Expr.Super) {
+                return invokeSuper((Expr.Super) expr.callee, expr, tail);
+            }
+
+            Object callee = evaluate(expr.callee);
+
+            List<Object> arguments = new ArrayList<>();
+            for (Expr argument : expr.arguments) {
+                arguments.add(evaluate(argument));
+            }
+
+            return call(expr.paren, callee, arguments, tail);
+        } catch (TooDeep error) {
+            throw stackOverflow(expr.paren);
+        }
+    }
+
+    // Going past maxDepth surfaces as a Lox runtime error at the innermost
+    // call expression.
+    static RuntimeError stackOverflow(Token paren) {
+        return new RuntimeError(paren, "Stack overflow.");
+    }
+
+    // Calls a method straight off the receiver, so only a method that is
+    // used as a value ever needs to be bound.
+    private Object invoke(Expr.Get get, Expr.Call expr, boolean tail) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances have properties.");
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        LoxFunction method = get.cache.method(instance, get.name);
+        Object callee = null;
+        if (method == null) callee = get.cache.get(instance, get.name);
 
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
 
+        if (method == null) return call(expr.paren, callee, arguments, tail);
+
+        checkArity(expr.paren, method, arguments);
+        if (tail) return tailCall(method, instance, arguments);
+        return method.invoke(this, instance, arguments);
+    }
+
+    private Object invokeSuper(Expr.Super expr, Expr.Call call, boolean tail) {
+        LoxClass superclass = (LoxClass) environment.getAt(expr.depth, expr.slot);
+        LoxInstance object = (LoxInstance) environment.getAt(expr.thisDepth, 0);
+        LoxFunction method = superMethod(expr, superclass);
+
+        List<Object> arguments = new ArrayList<>();
+        for (Expr argument : call.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        checkArity(call.paren, method, arguments);
+        if (tail) return tailCall(method, object, arguments);
+        return method.invoke(this, object, arguments);
+    }
+
+    Object call(Token paren, Object callee, List<Object> arguments,
+            boolean tail) {
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes");
+            throw new RuntimeError(paren, "Can only call functions and classes");
         }
 
         LoxCallable function = (LoxCallable) callee;
+        checkArity(paren, function, arguments);
+        if (tail && function instanceof LoxFunction) {
+            return ((LoxFunction) function).tailCall(this, arguments);
+        }
+        return function.call(this, arguments);
+    }
+
+    // The completion of a return statement whose value is a call to a Lox
+    // function. Nothing runs between a return producing it and the caller
+    // consuming it, so one instance is reused for every tail call.
+    static final class TailCall {
+        LoxFunction function;
+        LoxInstance receiver;
+        List<Object> arguments;
+    }
+
+    final TailCall tailCall = new TailCall();
+
+    // How many Lox calls are active, and how many may be. The script's
+    // thread has Java stack for maxDepth calls, so the JVM's own
+    // StackOverflowError, which can strike halfway through updating an
+    // instance or a cache, is never caught.
+    int depth = 0;
+    int maxDepth = Integer.MAX_VALUE;
 
+    // Thrown by LoxFunction.invoke before a call past maxDepth starts, for
+    // the call expression to report. It carries nothing, so one does.
+    static final class TooDeep extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final TooDeep INSTANCE = new TooDeep();
+
+        private TooDeep() {
+            super(null, null, false, false);
+        }
+    }
+
+    Object tailCall(LoxFunction function, LoxInstance receiver,
+            List<Object> arguments) {
+        tailCall.function = function;
+        tailCall.receiver = receiver;
+        tailCall.arguments = arguments;
+        return tailCall;
+    }
+
+    static void checkArity(Token paren, LoxCallable function,
+            List<Object> arguments) {
         if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                     "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
         }
-        return function.call(this, arguments);
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Object visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        environment.define(stmt.name.symbol, function);
+        return NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
-
-        throw new Return(value);
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return null;
+        if (stmt.tailCall) return call((Expr.Call) stmt.value, true);
+        return evaluate(stmt.value);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+    public Object visitClassStmt(Stmt.Class stmt) {
+        Object superclass = null;
+        if (stmt.superclass != null) {
+            superclass = evaluate(stmt.superclass);
+            if (!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(stmt.superclass.name,
+                        "Superclass must be a class.");
+            }
+        }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Environment scope = environment;
+        if (stmt.superclass != null) {
+            scope = new Environment(environment, 1);
+            scope.defineLocal(superclass);
+        }
+
+        SymbolMap<LoxFunction> methods = new SymbolMap<>();
         for(Stmt.Function method: stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment
-            , method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, scope
+            , method.name.symbol == Symbols.INIT);
+            methods.put(method.name.symbol, function);
         }
         
-        LoxClass claos = new LoxClass(stmt.name.lexeme, methods);
-        environment.assign(stmt.name, claos);
-        return null;
+        // Methods only look the class up once they run, so it can be
+        // defined after they close over this environment.
+        LoxClass claos = new LoxClass(stmt.name.lexeme,
+                (LoxClass) superclass, methods);
+        environment.define(stmt.name.symbol, claos);
+        return NORMAL;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if(object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return expr.cache.get((LoxInstance) object, expr.name);
         }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
@@ -343,12 +563,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        expr.cache.set((LoxInstance) object, expr.name, value);
         return value;
     }
 
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        LoxClass superclass = (LoxClass) environment.getAt(expr.depth, expr.slot);
+        LoxInstance object = (LoxInstance) environment.getAt(expr.thisDepth, 0);
+        return superMethod(expr, superclass).bind(object);
+    }
+
+    // The superclass behind a given super expression only changes when its
+    // class declaration runs again, so each site remembers its last lookup.
+    static LoxFunction superMethod(Expr.Super expr, LoxClass superclass) {
+        if (expr.cachedClass == superclass) return expr.cachedMethod;
+
+        LoxFunction method = superclass.findMethod(expr.method.symbol);
+        if (method == null) {
+            throw new RuntimeError(expr.method,
+                    "Undefined property '" + expr.method.lexeme + "'.");
+        }
+
+        expr.cachedClass = superclass;
+        expr.cachedMethod = method;
+        return method;
+    }
+
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        return lookupVariable(expr.keyword, expr.depth, expr.slot);
     }
 }
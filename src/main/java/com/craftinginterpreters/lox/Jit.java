@@ -0,0 +1,649 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// The second tier of the tree-walking Interpreter. Functions and loops
+// start out interpreted and count how often they run. Once one is hot it
+// is compiled into a tree of Java closures, with every variable reference,
+// operator and call site resolved up front, which the JVM then compiles to
+// machine code like any other Java.
+//
+// Compiled code may assume a global keeps the value it had at compile
+// time. Redefining the global discards the compiled code, so the next run
+// goes back to the Interpreter, and an activation that is already running
+// falls back to looking the global up. A global that keeps being
+// redefined is no longer assumed to keep its value, so a unit that calls
+// it is not compiled and discarded over and over.
+//
+// Each Interpreter has its own Jit, because compiled code holds on to that
+// interpreter's globals. A function or loop keeps the code and hotness of
+// the last Jit to claim it, and another interpreter running the same tree
+// claims it back and starts it cold.
+class Jit implements Expr.Visitor<Jit.Value>, Stmt.Visitor<Jit.Code> {
+    boolean enabled = true;
+    int callThreshold = 1000;
+    int loopThreshold = 10000;
+    // Redefinitions of a global that discarded compiled code before calls
+    // to it are no longer assumed to reach its current value.
+    int maxDeoptimizations = 8;
+
+    // Returns NORMAL when the statement completes, or the value of the
+    // return statement that ended the function, as the Interpreter does.
+    interface Code {
+        Object run(Environment environment);
+    }
+
+    interface Value {
+        Object eval(Environment environment);
+    }
+
+    interface Condition {
+        boolean test(Environment environment);
+    }
+
+    private static final Object NORMAL = Interpreter.NORMAL;
+
+    private final Interpreter interpreter;
+
+    // The assumptions made by the unit being compiled.
+    private final Set<Assumption> assumptions = new LinkedHashSet<>();
+
+    // A compiled function body or loop, as the assumptions it made see
+    // it. It only refers to its tree weakly, so an assumption that stays
+    // valid keeps neither the tree nor its compiled code alive.
+    private final class Unit implements Assumption.Dependent {
+        private final WeakReference<Stmt> tree;
+        private final List<Assumption> assumptions;
+
+        Unit(Stmt tree, List<Assumption> assumptions) {
+            this.tree = new WeakReference<>(tree);
+            this.assumptions = assumptions;
+        }
+
+        // Hands the tree back to the Interpreter, which compiles it again
+        // once it is hot again. A tree another Jit has claimed since is
+        // left alone.
+        @Override
+        public void invalidated() {
+            for (Assumption assumption : assumptions) {
+                assumption.forget(this);
+            }
+
+            Stmt stmt = tree.get();
+            if (stmt instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) stmt;
+                if (function.jit == Jit.this) claim(function);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) stmt;
+                if (loop.jit == Jit.this) claim(loop);
+            } else if (stmt instanceof Stmt.For) {
+                Stmt.For loop = (Stmt.For) stmt;
+                if (loop.jit == Jit.this) claim(loop);
+            }
+        }
+
+        @Override
+        public boolean isGone() {
+            return tree.get() == null;
+        }
+    }
+
+    Jit(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Makes the tree this Jit's, with no compiled code and not yet hot.
+    void claim(Stmt.Function function) {
+        function.jit = this;
+        function.compiled = null;
+        function.hotness = 0;
+    }
+
+    void claim(Stmt.While loop) {
+        loop.jit = this;
+        loop.compiled = null;
+        loop.hotness = 0;
+    }
+
+    void claim(Stmt.For loop) {
+        loop.jit = this;
+        loop.compiled = null;
+        loop.hotness = 0;
+    }
+
+    Code compile(Stmt.Function function) {
+        assumptions.clear();
+        function.compiled = sequence(function.body);
+        depend(function);
+        return function.compiled;
+    }
+
+    Code compile(Stmt.While loop) {
+        assumptions.clear();
+        loop.compiled = loop.accept(this);
+        depend(loop);
+        return loop.compiled;
+    }
+
+    // Compiles the part of a for loop after its initializer, to run in the
+    // loop's own environment.
+    Code compile(Stmt.For loop) {
+        assumptions.clear();
+        loop.compiled = loop(loop);
+        depend(loop);
+        return loop.compiled;
+    }
+
+    private void depend(Stmt tree) {
+        Unit unit = new Unit(tree, List.copyOf(assumptions));
+        for (Assumption assumption : assumptions) {
+            assumption.whenInvalidated(unit);
+        }
+    }
+
+    private Code compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Value compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Code sequence(List<Stmt> statements) {
+        if (statements.size() == 1) return compile(statements.get(0));
+
+        Code[] codes = new Code[statements.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = compile(statements.get(i));
+        }
+        return environment -> {
+            for (Code code : codes) {
+                Object result = code.run(environment);
+                if (result != NORMAL) return result;
+            }
+            return NORMAL;
+        };
+    }
+
+    private Condition condition(Expr expr) {
+        if (expr instanceof Expr.Binary
+                && ((Expr.Binary) expr).node instanceof BinaryNode.Comparison) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            BinaryNode.Comparison node = (BinaryNode.Comparison) binary.node;
+            Value left = compile(binary.left);
+            Value right = compile(binary.right);
+            return environment -> {
+                Object a = left.eval(environment);
+                Object b = right.eval(environment);
+                if (a instanceof Double && b instanceof Double) {
+                    return node.test((double) a, (double) b);
+                }
+                return (boolean) binary.node.execute(binary, a, b);
+            };
+        }
+
+        Value value = compile(expr);
+        return environment -> Interpreter.isTruthy(value.eval(environment));
+    }
+
+    @Override
+    public Code visitBlockStmt(Stmt.Block stmt) {
+        int frameSize = stmt.frameSize;
+        Code body = sequence(stmt.statements);
+        if (frameSize == 0) return body;
+        return environment ->
+                body.run(new Environment(environment, frameSize));
+    }
+
+    @Override
+    public Code visitClassStmt(Stmt.Class stmt) {
+        // Rare enough in hot code that the Interpreter can handle it.
+        List<Stmt> statements = List.of(stmt);
+        return environment -> {
+            interpreter.executeBlock(statements, environment);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitExpressionStmt(Stmt.Expression stmt) {
+        Value expression = compile(stmt.expression);
+        return environment -> {
+            expression.eval(environment);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitForStmt(Stmt.For stmt) {
+        int frameSize = stmt.frameSize;
+        Code initializer = stmt.initializer == null
+                ? environment -> NORMAL : compile(stmt.initializer);
+        Code loop = loop(stmt);
+        return environment -> {
+            Environment inner = frameSize == 0
+                    ? environment : new Environment(environment, frameSize);
+            initializer.run(inner);
+            return loop.run(inner);
+        };
+    }
+
+    private Code loop(Stmt.For stmt) {
+        Condition condition = condition(stmt.condition);
+        Code body = compile(stmt.body);
+        Value increment = stmt.increment == null
+                ? environment -> null : compile(stmt.increment);
+        Code loop = environment -> {
+            while (condition.test(environment)) {
+                Object result = body.run(environment);
+                if (result != NORMAL) return result;
+                increment.eval(environment);
+            }
+            return NORMAL;
+        };
+        if (stmt.counted == null) return loop;
+
+        // The counter stays unboxed unless the body reads it.
+        CountedLoop counted = stmt.counted;
+        Value bound = compile(counted.bound);
+        double step = counted.step;
+        boolean counterRead = counted.counterRead;
+        return environment -> {
+            Object start = environment.getAt(0, 0);
+            if (!(start instanceof Double)) return loop.run(environment);
+
+            double counter = (double) start;
+            while (counted.test(counter, bound.eval(environment))) {
+                if (counterRead) environment.assignAt(0, 0, counter);
+                Object result = body.run(environment);
+                if (result != NORMAL) return result;
+                counter += step;
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitFunctionStmt(Stmt.Function stmt) {
+        int name = stmt.name.symbol;
+        return environment -> {
+            environment.define(name, new LoxFunction(stmt, environment, false));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitIfStmt(Stmt.If stmt) {
+        Condition condition = condition(stmt.condition);
+        Code thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return environment -> condition.test(environment)
+                    ? thenBranch.run(environment) : NORMAL;
+        }
+
+        Code elseBranch = compile(stmt.elseBranch);
+        return environment -> condition.test(environment)
+                ? thenBranch.run(environment) : elseBranch.run(environment);
+    }
+
+    @Override
+    public Code visitImportStmt(Stmt.Import stmt) {
+        // Imports are top-level only, so this is never hot.
+        List<Stmt> statements = List.of(stmt);
+        return environment -> {
+            interpreter.executeBlock(statements, environment);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitPrintStmt(Stmt.Print stmt) {
+        Value expression = compile(stmt.expression);
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.eval(environment)));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return environment -> null;
+        if (stmt.tailCall) return call((Expr.Call) stmt.value, true)::eval;
+        return compile(stmt.value)::eval;
+    }
+
+    @Override
+    public Code visitVarStmt(Stmt.Var stmt) {
+        int name = stmt.name.symbol;
+        if (stmt.initializer == null) {
+            return environment -> {
+                environment.define(name, null);
+                return NORMAL;
+            };
+        }
+
+        Value initializer = compile(stmt.initializer);
+        return environment -> {
+            environment.define(name, initializer.eval(environment));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitWhileStmt(Stmt.While stmt) {
+        Condition condition = condition(stmt.condition);
+        Code body = compile(stmt.body);
+        return environment -> {
+            while (condition.test(environment)) {
+                Object result = body.run(environment);
+                if (result != NORMAL) return result;
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Value visitAssignExpr(Expr.Assign expr) {
+        Value value = compile(expr.value);
+        int depth = expr.depth;
+        int slot = expr.slot;
+
+        if (depth == -1) {
+            Environment.Global global = interpreter.globals.global(expr.name.symbol);
+            if (global == null) {
+                Token name = expr.name;
+                return environment -> {
+                    Object result = value.eval(environment);
+                    interpreter.globals.assign(name, result);
+                    return result;
+                };
+            }
+
+            return environment -> {
+                Object result = value.eval(environment);
+                global.set(result);
+                return result;
+            };
+        }
+
+        return environment -> {
+            Object result = value.eval(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Value visitBinaryExpr(Expr.Binary expr) {
+        Value left = compile(expr.left);
+        Value right = compile(expr.right);
+
+        // Sites the Interpreter has already specialized keep their fast
+        // path inline. The node still handles anything it does not expect.
+        if (expr.node instanceof BinaryNode.Arithmetic) {
+            BinaryNode.Arithmetic node = (BinaryNode.Arithmetic) expr.node;
+            return environment -> {
+                Object a = left.eval(environment);
+                Object b = right.eval(environment);
+                if (a instanceof Double && b instanceof Double) {
+                    return node.apply((double) a, (double) b);
+                }
+                return expr.node.execute(expr, a, b);
+            };
+        }
+
+        if (expr.node instanceof BinaryNode.Comparison) {
+            Condition test = condition(expr);
+            return environment -> test.test(environment);
+        }
+
+        return environment -> {
+            Object a = left.eval(environment);
+            Object b = right.eval(environment);
+            return expr.node.execute(expr, a, b);
+        };
+    }
+
+    @Override
+    public Value visitCallExpr(Expr.Call expr) {
+        return call(expr, false);
+    }
+
+    private Value call(Expr.Call expr, boolean tail) {
+        Value call = compileCall(expr, tail);
+        Token paren = expr.paren;
+        return environment -> {
+            try {
+                return call.eval(environment);
+            } catch (Interpreter.TooDeep error) {
+                throw Interpreter.stackOverflow(paren);
+            }
+        };
+    }
+
+    // Compiles a call the way the Interpreter runs it. In tail position,
+    // a call to a Lox function completes with a TailCall instead.
+    private Value compileCall(Expr.Call expr, boolean tail) {
+        Value[] arguments = new Value[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        Token paren = expr.paren;
+        if (expr.callee instanceof Expr.Get) {
+            return invoke((Expr.Get) expr.callee, arguments, paren, tail);
+        }
+        if (expr.callee instanceof Expr.Super) {
+            return invokeSuper((Expr.Super) expr.callee, arguments, paren, tail);
+        }
+
+        Value callee = compile(expr.callee);
+
+        // Calling a global function is by far the most common call, so
+        // assume it keeps calling the function it calls now.
+        Environment.Global global = constantCallee(expr.callee, arguments.length);
+        if (global != null) {
+            LoxCallable target = (LoxCallable) global.value;
+            Assumption stable = global.stable();
+            assumptions.add(stable);
+            if (tail && target instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) target;
+                return environment -> {
+                    if (!stable.isValid()) {
+                        return interpreter.call(paren, callee.eval(environment),
+                                evaluate(arguments, environment), true);
+                    }
+                    return function.tailCall(interpreter,
+                            evaluate(arguments, environment));
+                };
+            }
+
+            return environment -> {
+                if (!stable.isValid()) {
+                    return interpreter.call(paren, callee.eval(environment),
+                            evaluate(arguments, environment), tail);
+                }
+                return target.call(interpreter, evaluate(arguments, environment));
+            };
+        }
+
+        return environment -> interpreter.call(paren, callee.eval(environment),
+                evaluate(arguments, environment), tail);
+    }
+
+    private Environment.Global constantCallee(Expr callee, int argumentCount) {
+        if (!(callee instanceof Expr.Variable)) return null;
+
+        Expr.Variable variable = (Expr.Variable) callee;
+        if (variable.depth != -1) return null;
+
+        Environment.Global global = interpreter.globals.global(variable.name.symbol);
+        if (global == null || !(global.value instanceof LoxCallable)) return null;
+        if (global.deoptimizations >= maxDeoptimizations) return null;
+        if (((LoxCallable) global.value).arity() != argumentCount) return null;
+
+        return global;
+    }
+
+    private static List<Object> evaluate(Value[] arguments,
+            Environment environment) {
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (Value argument : arguments) {
+            values.add(argument.eval(environment));
+        }
+        return values;
+    }
+
+    private Value invoke(Expr.Get get, Value[] arguments, Token paren,
+            boolean tail) {
+        Value object = compile(get.object);
+        Token name = get.name;
+        PropertyCache cache = get.cache;
+        return environment -> {
+            Object value = object.eval(environment);
+            if (!(value instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+
+            LoxInstance instance = (LoxInstance) value;
+            LoxFunction method = cache.method(instance, name);
+            if (method == null) {
+                Object callee = cache.get(instance, name);
+                return interpreter.call(paren, callee,
+                        evaluate(arguments, environment), tail);
+            }
+
+            List<Object> values = evaluate(arguments, environment);
+            Interpreter.checkArity(paren, method, values);
+            if (tail) return interpreter.tailCall(method, instance, values);
+            return method.invoke(interpreter, instance, values);
+        };
+    }
+
+    private Value invokeSuper(Expr.Super expr, Value[] arguments, Token paren,
+            boolean tail) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int thisDepth = expr.thisDepth;
+        return environment -> {
+            LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+            LoxInstance object = (LoxInstance) environment.getAt(thisDepth, 0);
+            LoxFunction method = Interpreter.superMethod(expr, superclass);
+
+            List<Object> values = evaluate(arguments, environment);
+            Interpreter.checkArity(paren, method, values);
+            if (tail) return interpreter.tailCall(method, object, values);
+            return method.invoke(interpreter, object, values);
+        };
+    }
+
+    @Override
+    public Value visitGetExpr(Expr.Get expr) {
+        Value object = compile(expr.object);
+        Token name = expr.name;
+        PropertyCache cache = expr.cache;
+        return environment -> {
+            Object instance = object.eval(environment);
+            if (instance instanceof LoxInstance) {
+                return cache.get((LoxInstance) instance, name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public Value visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Value visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Value visitLogicalExpr(Expr.Logical expr) {
+        Value left = compile(expr.left);
+        Value right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.eval(environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.eval(environment);
+            };
+        }
+
+        return environment -> {
+            Object value = left.eval(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.eval(environment);
+        };
+    }
+
+    @Override
+    public Value visitSetExpr(Expr.Set expr) {
+        Value object = compile(expr.object);
+        Value value = compile(expr.value);
+        Token name = expr.name;
+        PropertyCache cache = expr.cache;
+        return environment -> {
+            Object instance = object.eval(environment);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.eval(environment);
+            cache.set((LoxInstance) instance, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Value visitSuperExpr(Expr.Super expr) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int thisDepth = expr.thisDepth;
+        return environment -> {
+            LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+            LoxInstance object = (LoxInstance) environment.getAt(thisDepth, 0);
+            return Interpreter.superMethod(expr, superclass).bind(object);
+        };
+    }
+
+    @Override
+    public Value visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public Value visitUnaryExpr(Expr.Unary expr) {
+        Value right = compile(expr.right);
+        return environment -> expr.node.execute(expr, right.eval(environment));
+    }
+
+    @Override
+    public Value visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    private Value variable(Token name, int depth, int slot) {
+        if (depth == -1) {
+            Environment.Global global = interpreter.globals.global(name.symbol);
+            if (global == null) {
+                return environment -> interpreter.globals.get(name);
+            }
+            return environment -> global.value;
+        }
+
+        if (depth == 0) {
+            return environment -> environment.getAt(0, slot);
+        }
+        return environment -> environment.getAt(depth, slot);
+    }
+}
@@ -1,35 +1,228 @@
 package com.craftinginterpreters.lox;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 
 public class Lox {
     private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
+    // Set when --vm selects the bytecode VM instead of the tree-walker.
+    private static VM vm = null;
+    // Set from whichever thread loads the module with the error.
+    static volatile boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    // Rewrites of the resolved program, run in order before it executes.
+    // --no-optimize empties the list.
+    private static final List<UnaryOperator<List<Stmt>>> passes =
+            new ArrayList<>(List.of(new Optimizer()::optimize));
+
+    // Cleared by --no-cache to always compile from source.
+    private static boolean useCache = true;
+    // Cleared by --no-jit to keep the tree-walker from compiling hot code.
+    private static boolean useJit = true;
+
+    // Prints front-end errors and sets hadError.
+    static final ErrorReporter reporter = Lox::report;
+
+    private static final ModuleLoader modules = new ModuleLoader(Lox::compile);
+    // The script runFile() runs, which errors in its modules are named
+    // relative to.
+    private static Path script = null;
+
+    // Set by --memoize to cache up to this many results per pure function.
+    private static int memoCapacity = 0;
+    private static boolean memoStats = false;
+    private static final List<Memo> memos = new ArrayList<>();
+
+    // How deep Lox calls may nest before a "Stack overflow." error. Zero
+    // until --max-depth sets it, then at most the mode's limit below.
+    private static int maxDepth = 0;
+    private static final int DEFAULT_DEPTH = 1_000_000;
+    // Java stack reserved per nested tree-walker call, and the most the
+    // tree-walker's thread reserves in all. Only the part that is actually
+    // used gets committed, but the rest still takes address space. Nothing
+    // catches the JVM running out, so a call gets room for its evaluation
+    // to nest well past what scripts do; only the VM's depth is bounded
+    // just by the heap.
+    private static final long STACK_PER_CALL = 4096;
+    private static final long MAX_STACK = 512L << 20;
+    // VM frames are on the heap, which bounds how many there can be.
+    private static final int MAX_VM_DEPTH = 10_000_000;
+
+    // Set by --bench to time each workload this many times instead of
+    // running a script once.
+    private static int benchRuns = 0;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        int first = 0;
+        boolean useVm = false;
+        boolean optimize = true;
+        int warmup = 3;
+        int threshold = 10;
+        Path baseline = null;
+        Path save = null;
+        while (first < args.length && args[first].startsWith("--")) {
+            String flag = args[first];
+            if (flag.startsWith("--max-depth=")) {
+                maxDepth = parsePositive(flag.substring("--max-depth=".length()));
+            } else if (flag.startsWith("--memoize=")) {
+                memoCapacity = parsePositive(flag.substring("--memoize=".length()));
+            } else if (flag.startsWith("--bench=")) {
+                benchRuns = parsePositive(flag.substring("--bench=".length()));
+            } else if (flag.startsWith("--warmup=")) {
+                warmup = parsePositive(flag.substring("--warmup=".length()));
+            } else if (flag.startsWith("--threshold=")) {
+                threshold = parsePositive(flag.substring("--threshold=".length()));
+            } else if (flag.startsWith("--baseline=")) {
+                baseline = Paths.get(flag.substring("--baseline=".length()));
+            } else if (flag.startsWith("--save-baseline=")) {
+                save = Paths.get(flag.substring("--save-baseline=".length()));
+            } else {
+                switch (flag) {
+                    case "--vm" -> useVm = true;
+                    case "--no-jit" -> useJit = false;
+                    case "--no-optimize" -> optimize = false;
+                    case "--no-cache" -> useCache = false;
+                    case "--memoize" -> memoCapacity = 10_000;
+                    case "--memo-stats" -> memoStats = true;
+                    case "--bench" -> benchRuns = 10;
+                    default -> usage();
+                }
+            }
+            first++;
+        }
+
+        if (args.length - first > 1) usage();
+        if (benchRuns > 0 && args.length - first != 1) usage();
+
+        int depthLimit = useVm ? MAX_VM_DEPTH : (int) (MAX_STACK / STACK_PER_CALL);
+        if (maxDepth == 0) {
+            maxDepth = Math.min(DEFAULT_DEPTH, depthLimit);
+        } else if (maxDepth > depthLimit) {
+            System.out.println("--max-depth can be at most " + depthLimit
+                    + (useVm ? " with --vm." : " without --vm."));
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
         }
+
+        if (!optimize) passes.clear();
+        if (useVm) vm = new VM(maxDepth);
+        interpreter.maxDepth = maxDepth;
+        interpreter.jit.enabled = useJit;
+
+        // The tree-walker nests Java calls for each Lox call, so it runs on
+        // a thread whose stack is deep enough for maxDepth of them. The VM
+        // keeps its frames on the heap and needs no more than the default.
+        long stackSize = useVm ? 0 : maxDepth * STACK_PER_CALL;
+        String script = args.length - first == 1 ? args[first] : null;
+        BenchmarkRunner bench = benchRuns > 0 ? benchmarkRunner(warmup, threshold) : null;
+        Path benchBaseline = baseline;
+        Path benchSave = save;
+        Thread thread = new Thread(null, () -> {
+            try {
+                if (bench != null) {
+                    if (!bench.run(Paths.get(script), benchBaseline, benchSave)) {
+                        System.exit(1);
+                    }
+                } else if (script != null) {
+                    runFile(script);
+                } else {
+                    runPrompt();
+                }
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }, "lox", stackSize);
+
+        // Anything the script thread fails with is rethrown here, so it
+        // still ends the process the way it did on the main thread.
+        Throwable[] failure = new Throwable[1];
+        thread.setUncaughtExceptionHandler((t, error) -> failure[0] = error);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure[0] instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) failure[0]).getCause();
+        } else if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+    }
+
+    // Each run compiles the workload and the modules it imports again,
+    // skipping the cache, and runs it on a fresh interpreter or VM so no
+    // state carries over between runs.
+    private static BenchmarkRunner benchmarkRunner(int warmup, int threshold) {
+        BenchmarkRunner runner = new BenchmarkRunner((workload, source) -> {
+            Path file = workload.toAbsolutePath().normalize();
+            List<Stmt> statements = compile(file, source, false);
+            if (statements == null) return null;
+
+            ModuleLoader loader = new ModuleLoader(
+                    (module, text) -> compile(module, text, false));
+            loader.load(statements, file);
+            if (hadError) return null;
+            loader.link(statements, file);
+            return statements;
+        }, () -> {
+            if (vm != null) return new VM(maxDepth)::interpret;
+            Interpreter fresh = new Interpreter();
+            fresh.maxDepth = maxDepth;
+            fresh.jit.enabled = useJit;
+            return fresh::interpret;
+        });
+        runner.runs = benchRuns;
+        runner.warmup = warmup;
+        runner.thresholdPercent = threshold;
+        return runner;
+    }
+
+    private static int parsePositive(String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) return number;
+        } catch (NumberFormatException error) {
+            // Fall through to the usage message.
+        }
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm] [--no-jit] [--no-optimize] [--no-cache]"
+                + " [--max-depth=N] [--memoize[=N]] [--memo-stats] [script]");
+        System.out.println("       jlox --bench[=N] [--warmup=N] [--baseline=FILE]"
+                + " [--save-baseline=FILE] [--threshold=PCT] [--vm] [dir|script]");
+        System.exit(64);
     }
 
     static void runtimeError(RuntimeError error) {
         System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
+                "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // The Scanner reads the file's UTF-8 straight from the page cache.
+        Path file = Paths.get(path).toAbsolutePath().normalize();
+        script = file;
+        try (FileChannel channel = FileChannel.open(file)) {
+            run(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    file);
+        }
+
+        if (memoStats) {
+            for (Memo memo : memos) System.err.println(memo);
+        }
 
         // Indicate an error in the exit code.
         if (hadError) {
@@ -54,35 +247,104 @@ public class Lox {
     }
 
     private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        run(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    // Runs a script file, or a REPL line if file is null.
+    private static void run(ByteBuffer source, Path file) {
+        List<Stmt> statements = compile(file, source);
+        if (statements == null) return;
+
+        modules.load(statements, file);
+        if (hadError) return;
+        modules.link(statements, file);
+
+        // Purity needs every declaration up front, so REPL lines are never
+        // memoized. The VM does not consult memos.
+        if (memoCapacity > 0 && file != null && vm == null) {
+            for (Stmt.Function function : new Purity().pureFunctions(statements)) {
+                function.memo = new Memo(function.name.lexeme, memoCapacity);
+                memos.add(function.memo);
+            }
+        }
 
-        Parser parser = new Parser(tokens);
+        if (vm != null) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    // Takes a script or module from source to the statements that run,
+    // through the file's cache if it has one. Modules are compiled in
+    // parallel, so this may be called from several threads at once.
+    // Returns null if the file has errors. The benchmarks compile through
+    // here too, with no file, so they measure what jlox runs.
+    static List<Stmt> compile(Path file, ByteBuffer source) {
+        return compile(file, source, useCache);
+    }
+
+    private static List<Stmt> compile(Path file, ByteBuffer source, boolean cached) {
+        ProgramCache cache = null;
+        if (file != null && cached && source.remaining() >= ProgramCache.MIN_SOURCE) {
+            cache = new ProgramCache(file, source, !passes.isEmpty());
+            List<Stmt> statements = cache.load();
+            if (statements != null) return statements;
+        }
+
+        // Errors in other modules don't stop this one, so every module
+        // reports all of its own.
+        boolean[] failed = {false};
+        ErrorReporter report = reporter(file);
+        ErrorReporter errors = (line, where, message) -> {
+            failed[0] = true;
+            report.report(line, where, message);
+        };
+        Scanner scanner = new Scanner(source, 1, errors);
+        TokenBuffer tokens = scanner.scanTokens();
+
+        Parser parser = new Parser(tokens, errors);
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) {
-            return;
+        if (failed[0]) {
+            return null;
         }
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(errors);
         resolver.resolve(statements);
 
-        if (hadError) return;
+        if (failed[0]) return null;
 
-        interpreter.interpret(statements);
+        for (UnaryOperator<List<Stmt>> pass : passes) {
+            statements = pass.apply(statements);
+        }
+
+        if (cache != null) cache.store(statements);
+        return statements;
+    }
+
+    // Where errors in file go. Those in the script or a REPL line say
+    // "[line N]", and those in an imported module also name the module,
+    // like "[lib/util.lox:3]".
+    static ErrorReporter reporter(Path file) {
+        if (file == null || file.equals(script)) return reporter;
+
+        Path base = script != null
+                ? script.getParent() : Paths.get("").toAbsolutePath();
+        String name = base.relativize(file).toString();
+        return (line, where, message) -> {
+            System.err.println("[" + name + ":" + line + "] Error" + where + ": " + message);
+            hadError = true;
+        };
     }
 
     static void error(int line, String message) {
-        report(line, "", message);
+        reporter.error(line, message);
     }
 
     static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
-        }
+        reporter.error(token, message);
     }
 
     private static void report(int line, String where, String message) {
@@ -1,15 +1,29 @@
 package com.craftinginterpreters.lox;
 
 import java.util.List;
-import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
-    private final Map<String, LoxFunction> methods;
-    
-    LoxClass(String name, Map<String, LoxFunction> methods) {
+    final LoxClass superclass;
+    // Inherited methods are copied down when the class is created, so
+    // finding a method is one lookup however deep the hierarchy is.
+    private final SymbolMap<LoxFunction> methods;
+    // Looked up once, since every construction needs it.
+    private final LoxFunction initializer;
+
+    // Every instance starts out with this shape.
+    final Shape rootShape = new Shape(this);
+    // The most fields any instance has had, used to size new instances.
+    int fieldCapacity = 0;
+
+    LoxClass(String name, LoxClass superclass,
+            SymbolMap<LoxFunction> methods) {
         this.name = name;
-        this.methods = methods;
+        this.superclass = superclass;
+        this.methods = new SymbolMap<>();
+        if (superclass != null) this.methods.putAll(superclass.methods);
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get(Symbols.INIT);
     }
 
     @Override
@@ -17,27 +31,21 @@ class LoxClass implements LoxCallable {
         return name;
     }
 
-    LoxFunction findMethod(String name) {
-        if(methods.containsKey(name)) {
-            return methods.get(name);
-        }
-
-        return null;
+    LoxFunction findMethod(int name) {
+        return methods.get(name);
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if(initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if(initializer == null) return 0;
         return initializer.arity();
     }
@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
@@ -7,35 +8,121 @@ class LoxFunction implements LoxCallable {
     private final Environment closure;
 
     private final boolean isInitializer;
+    // The instance a method is bound to, or null for an unbound method or
+    // a plain function.
+    private final LoxInstance receiver;
 
     LoxFunction(Stmt.Function declaration, Environment closure,
             boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure,
+            boolean isInitializer, LoxInstance receiver) {
         this.isInitializer = isInitializer;
         this.closure = closure;
         this.declaration = declaration;
+        this.receiver = receiver;
     }
 
+    // Only needed when a method is used as a value. Calling a method
+    // directly goes through invoke() and binds nothing.
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, closure, isInitializer, instance);
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // Calls a method with the given receiver as "this", which is the first
+    // slot of the method's frame. A plain function passes null.
+    //
+    // When the body ends in a tail call, the callee runs here in a loop
+    // instead of on top of this call, so tail recursion uses no Java stack.
+    Object invoke(Interpreter interpreter, LoxInstance receiver,
+            List<Object> arguments) {
+        // The calling expression turns this into a Lox error.
+        if (interpreter.depth == interpreter.maxDepth) {
+            throw Interpreter.TooDeep.INSTANCE;
         }
 
+        interpreter.depth++;
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+            LoxFunction function = this;
+            // Memoized calls made along a chain of tail calls, as pairs of
+            // Memo and arguments. They all share the chain's final result.
+            List<Object> pending = null;
+            for (;;) {
+                Memo memo = function.declaration.memo;
+                List<Object> key = memo == null ? null : Memo.key(arguments);
+
+                Object result = key != null ? memo.get(key) : Memo.MISSING;
+                if (result == Memo.MISSING) {
+                    result = function.execute(interpreter, receiver, arguments);
+                    if (key != null) {
+                        if (pending == null) pending = new ArrayList<>();
+                        pending.add(memo);
+                        pending.add(key);
+                    }
+                }
+
+                if (result != interpreter.tailCall) {
+                    if (pending != null) remember(pending, result);
+                    return result;
+                }
+
+                Interpreter.TailCall call = interpreter.tailCall;
+                function = call.function;
+                receiver = call.receiver;
+                arguments = call.arguments;
+            }
+        } finally {
+            interpreter.depth--;
+        }
+    }
+
+    // Stores the innermost calls first, so that eviction from a long chain
+    // keeps the outermost calls, which are the likeliest to repeat.
+    @SuppressWarnings("unchecked")
+    private static void remember(List<Object> pending, Object result) {
+        for (int i = pending.size() - 2; i >= 0; i -= 2) {
+            ((Memo) pending.get(i)).put((List<Object>) pending.get(i + 1), result);
         }
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+    }
+
+    // A tail call to this function with its own receiver, if it is bound.
+    Object tailCall(Interpreter interpreter, List<Object> arguments) {
+        return interpreter.tailCall(this, receiver, arguments);
+    }
+
+    private Object execute(Interpreter interpreter, LoxInstance receiver,
+            List<Object> arguments) {
+        Environment environment = new Environment(closure,
+                declaration.frameSize);
+        if (receiver != null) environment.defineLocal(receiver);
+        for (int i = 0; i < declaration.params.size(); i++) {
+            environment.defineLocal(arguments.get(i));
+        }
+
+        Jit jit = interpreter.jit;
+        if (declaration.jit != jit) jit.claim(declaration);
+        Jit.Code code = declaration.compiled;
+        if (code == null && jit.enabled
+                && ++declaration.hotness == jit.callThreshold) {
+            code = jit.compile(declaration);
+        }
+
+        Object result;
+        if (code != null) {
+            result = code.run(environment);
+        } else {
+            result = interpreter.executeBlock(declaration.body, environment);
+        }
+
+        if (isInitializer) return receiver;
+        return result == Interpreter.NORMAL ? null : result;
     }
 
     @Override
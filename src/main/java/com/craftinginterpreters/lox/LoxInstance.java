@@ -1,33 +1,59 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 class LoxInstance {
-    private LoxClass claos;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(LoxClass claos) {
-        this.claos = claos;
+        this.shape = claos.rootShape;
+        int capacity = claos.fieldCapacity;
+        this.fields = capacity == 0 ? NO_FIELDS : new Object[capacity];
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            return fields[index];
         }
 
-        LoxFunction method = claos.findMethod(name.lexeme);
+        LoxFunction method = shape.claos.findMethod(name.symbol);
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            fields[index] = value;
+            return;
+        }
+
+        addField(shape.with(name.symbol), value);
+    }
+
+    // Moves this instance to a shape that has one more field than its
+    // current one, storing the new field's value.
+    void addField(Shape next, Object value) {
+        int index = shape.size;
+        if (index == fields.length) {
+            Object[] grown = new Object[Math.max(4, fields.length * 2)];
+            System.arraycopy(fields, 0, grown, 0, fields.length);
+            fields = grown;
+        }
+
+        fields[index] = value;
+        shape = next;
+
+        // Later instances start out big enough for what this one needed.
+        LoxClass claos = next.claos;
+        if (next.size > claos.fieldCapacity) claos.fieldCapacity = next.size;
     }
 
     @Override
     public String toString() {
-        return claos.name + " instance";
+        return shape.claos.name + " instance";
     }
 }
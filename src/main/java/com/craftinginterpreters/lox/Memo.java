@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The results of a pure function, keyed by argument list. It holds at
+// most a fixed number of entries and evicts the least recently used one.
+class Memo {
+    static final Object MISSING = new Object();
+
+    final String name;
+    long hits = 0;
+    long misses = 0;
+
+    private final Map<List<Object>, Object> results;
+
+    Memo(String name, int capacity) {
+        this.name = name;
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<List<Object>, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Only numbers, strings, booleans and nil compare by value, so calls
+    // with any other argument are not cached and have no key. Ropes are
+    // flattened so they hash like the same String.
+    static List<Object> key(List<Object> arguments) {
+        List<Object> key = arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            Object argument = arguments.get(i);
+            if (argument instanceof Rope) {
+                if (key == arguments) key = new ArrayList<>(arguments);
+                key.set(i, argument.toString());
+            } else if (argument != null && !(argument instanceof Double)
+                    && !(argument instanceof String)
+                    && !(argument instanceof Boolean)) {
+                return null;
+            }
+        }
+        return key;
+    }
+
+    Object get(List<Object> arguments) {
+        Object result = results.getOrDefault(arguments, MISSING);
+        if (result == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    void put(List<Object> arguments, Object result) {
+        results.put(arguments, result);
+    }
+
+    @Override
+    public String toString() {
+        return "memo " + name + ": " + hits + " hits, " + misses
+                + " misses, " + results.size() + " entries";
+    }
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.file.Path;
+import java.util.List;
+
+// A source file brought in by an import, with its resolved statements.
+class Module {
+    final Path path;
+    final List<Stmt> statements;
+
+    // Set once some import runs the module, so later imports of it don't.
+    boolean linked = false;
+
+    Module(Path path, List<Stmt> statements) {
+        this.path = path;
+        this.statements = statements;
+    }
+}
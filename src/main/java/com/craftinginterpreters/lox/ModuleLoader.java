@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+// Loads the modules a program imports. A module's front end, from scanning
+// through the optimizer passes, only needs the module's own source, so
+// every module is loaded on its own fork/join task: as soon as a module is
+// parsed and resolved, the modules it imports are forked, and independent
+// modules load in parallel. Loaded modules stay cached by path for the
+// rest of the session.
+//
+// Linking then walks the imports in program order and gives each module
+// to the first import that reaches it. Imports only appear at top level,
+// so running the module there, in the global scope, runs it exactly once
+// and before anything after that import.
+class ModuleLoader {
+    private final BiFunction<Path, ByteBuffer, List<Stmt>> frontEnd;
+    private final Map<Path, ForkJoinTask<Module>> modules =
+            new ConcurrentHashMap<>();
+
+    // frontEnd compiles a file's source, returning null if it has errors.
+    ModuleLoader(BiFunction<Path, ByteBuffer, List<Stmt>> frontEnd) {
+        this.frontEnd = frontEnd;
+    }
+
+    // Loads everything the statements import, directly or not. The
+    // statements come from file, or from the REPL if it is null.
+    void load(List<Stmt> statements, Path file) {
+        if (file != null) {
+            // A module importing the script itself must not run it again.
+            Module script = new Module(file, statements);
+            script.linked = true;
+            ForkJoinTask<Module> loaded = new LoadTask(file, null, null);
+            loaded.complete(script);
+            modules.putIfAbsent(file, loaded);
+        }
+
+        ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(
+                () -> ForkJoinTask.invokeAll(imports(statements, file))));
+    }
+
+    // Points the first import of each module at it. Only call this once
+    // everything loaded without errors.
+    void link(List<Stmt> statements, Path file) {
+        Path directory = directory(file);
+        for (Stmt statement : statements) {
+            if (!(statement instanceof Stmt.Import)) continue;
+
+            Stmt.Import stmt = (Stmt.Import) statement;
+            ForkJoinTask<Module> loaded = modules.get(resolve(directory, stmt));
+            Module module = loaded == null ? null : loaded.getRawResult();
+            if (module == null || module.linked) continue;
+
+            // Marked first, so an import cycle back to it stops here.
+            module.linked = true;
+            link(module.statements, module.path);
+            stmt.module = module;
+        }
+    }
+
+    private static Path directory(Path file) {
+        if (file == null) return Paths.get("").toAbsolutePath();
+        return file.getParent();
+    }
+
+    private static Path resolve(Path directory, Stmt.Import stmt) {
+        return directory.resolve((String) stmt.path.literal).normalize();
+    }
+
+    // Tasks for the modules file imports that nothing has started loading
+    // yet.
+    private List<LoadTask> imports(List<Stmt> statements, Path file) {
+        Path directory = directory(file);
+        List<LoadTask> tasks = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (!(statement instanceof Stmt.Import)) continue;
+
+            Stmt.Import stmt = (Stmt.Import) statement;
+            Path path = resolve(directory, stmt);
+            LoadTask task = new LoadTask(path, file, stmt.path);
+            if (modules.putIfAbsent(path, task) == null) tasks.add(task);
+        }
+        return tasks;
+    }
+
+    // Each task only waits on the tasks it forked, never on one that was
+    // already loading, so a cycle of imports can't deadlock.
+    private class LoadTask extends RecursiveTask<Module> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+        // The file that imports the module and where, to report errors at.
+        private final Path importer;
+        private final Token importPath;
+
+        LoadTask(Path path, Path importer, Token importPath) {
+            this.path = path;
+            this.importer = importer;
+            this.importPath = importPath;
+        }
+
+        @Override
+        protected Module compute() {
+            ByteBuffer source;
+            try (FileChannel channel = FileChannel.open(path)) {
+                source = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            } catch (IOException error) {
+                Lox.reporter(importer).error(importPath, "Can't read module.");
+                return failed();
+            }
+
+            List<Stmt> statements = frontEnd.apply(path, source);
+            if (statements == null) return failed();
+
+            invokeAll(imports(statements, path));
+            return new Module(path, statements);
+        }
+
+        // A module that failed to load is loaded again the next time a
+        // REPL line imports it.
+        private Module failed() {
+            modules.remove(path, this);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+// Instructions understood by the VM. Operands follow the opcode inline:
+// "u8" and "u16" are one- and two-byte unsigned big-endian values, "i32"
+// a four-byte signed one.
+final class OpCode {
+    static final byte OP_CONSTANT = 0;       // u16 constant
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_POP = 4;
+    static final byte OP_GET_LOCAL = 5;      // u16 slot
+    static final byte OP_SET_LOCAL = 6;      // u16 slot
+    static final byte OP_GET_GLOBAL = 7;     // u16 global
+    static final byte OP_DEFINE_GLOBAL = 8;  // u16 global
+    static final byte OP_SET_GLOBAL = 9;     // u16 global
+    static final byte OP_GET_UPVALUE = 10;   // u16 upvalue
+    static final byte OP_SET_UPVALUE = 11;   // u16 upvalue
+    static final byte OP_GET_PROPERTY = 12;  // u16 name constant
+    static final byte OP_SET_PROPERTY = 13;  // u16 name constant
+    static final byte OP_EQUAL = 14;
+    static final byte OP_GREATER = 15;
+    static final byte OP_GREATER_EQUAL = 16;
+    static final byte OP_LESS = 17;
+    static final byte OP_LESS_EQUAL = 18;
+    static final byte OP_ADD = 19;
+    static final byte OP_SUBTRACT = 20;
+    static final byte OP_MULTIPLY = 21;
+    static final byte OP_DIVIDE = 22;
+    static final byte OP_NOT = 23;
+    static final byte OP_NEGATE = 24;
+    static final byte OP_PRINT = 25;
+    static final byte OP_JUMP = 26;          // i32 forward offset
+    static final byte OP_JUMP_IF_FALSE = 27; // i32 forward offset
+    static final byte OP_LOOP = 28;          // i32 backward offset
+    static final byte OP_CALL = 29;          // u8 argument count
+    static final byte OP_INVOKE = 30;        // u16 name constant, u8 argument count
+    static final byte OP_CLOSURE = 31;       // u16 function constant, then
+                                             // (u8 isLocal, u16 index) per upvalue
+    static final byte OP_CLOSE_UPVALUE = 32;
+    static final byte OP_RETURN = 33;
+    static final byte OP_CLASS = 34;         // u16 name constant
+    static final byte OP_METHOD = 35;        // u16 name constant
+    static final byte OP_INHERIT = 36;
+    static final byte OP_GET_SUPER = 37;     // u16 name constant
+    static final byte OP_SUPER_INVOKE = 38;  // u16 name constant, u8 argument count
+    static final byte OP_TAIL_CALL = 39;     // u8 argument count
+
+    private OpCode() {
+    }
+}
@@ -0,0 +1,338 @@
+package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// Simplifies a resolved program before it runs. Operators whose operands
+// are literals are folded into a literal, branches on a constant condition
+// are replaced by the branch that is taken, and statements after a return
+// are dropped.
+//
+// Only folds that can't fail are made, so every runtime error still
+// happens at runtime on its original line. A node none of whose children
+// changed is returned as is, and a rebuilt node keeps what the Resolver
+// recorded on the original.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt optimized = optimize(statement);
+            if (optimized != null) result.add(optimized);
+            if (returns(optimized)) break;
+        }
+        return result;
+    }
+
+    // Returns null if the statement does nothing.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // A branch or loop body still needs a statement.
+    private Stmt branch(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        if (optimized != null) return optimized;
+
+        Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+        empty.frameSize = 0;
+        return empty;
+    }
+
+    // Whether running the statement always ends in a return.
+    private static boolean returns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block) stmt).statements;
+            return !statements.isEmpty()
+                    && returns(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return returns(ifStmt.thenBranch) && returns(ifStmt.elseBranch);
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements.equals(stmt.statements)) return stmt;
+
+        Stmt.Block block = new Stmt.Block(statements);
+        block.frameSize = stmt.frameSize;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.add((Stmt.Function) optimize(method));
+        }
+        if (methods.equals(stmt.methods)) return stmt;
+
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (isLiteral(expression)) return null;
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        // The loop keeps its scope even when its condition is false, since
+        // the initializer still runs in it.
+        Stmt initializer = stmt.initializer == null
+                ? null : optimize(stmt.initializer);
+        Expr condition = optimize(stmt.condition);
+        Expr increment = stmt.increment == null
+                ? null : optimize(stmt.increment);
+        Stmt body = branch(stmt.body);
+        if (initializer == stmt.initializer && condition == stmt.condition
+                && increment == stmt.increment && body == stmt.body) {
+            return stmt;
+        }
+
+        Stmt.For loop = new Stmt.For(initializer, condition, increment, body);
+        loop.frameSize = stmt.frameSize;
+        if (stmt.counted != null) {
+            loop.counted = CountedLoop.match(loop);
+            if (loop.counted != null) {
+                loop.counted.counterRead = stmt.counted.counterRead;
+            }
+        }
+        return loop;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if (body.equals(stmt.body)) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.frameSize = stmt.frameSize;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition)) {
+            if (Interpreter.isTruthy(valueOf(condition))) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = branch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : branch(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        // The module is optimized on its own when it is loaded.
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        Stmt.Return returnStmt = new Stmt.Return(stmt.keyword, value);
+        returnStmt.tailCall = stmt.tailCall;
+        return returnStmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition) && !Interpreter.isTruthy(valueOf(condition))) {
+            return null;
+        }
+
+        Stmt body = branch(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        Expr.Binary binary = expr;
+        if (left != expr.left || right != expr.right) {
+            binary = new Expr.Binary(left, expr.operator, right);
+        }
+        return isLiteral(left) && isLiteral(right) ? fold(binary) : binary;
+    }
+
+    // Evaluates a binary operator on literals the way the Interpreter
+    // would, unless that could fail.
+    private static Expr fold(Expr.Binary expr) {
+        Object left = valueOf(expr.left);
+        Object right = valueOf(expr.right);
+
+        boolean foldable;
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                foldable = true;
+                break;
+            case PLUS:
+                foldable = (left instanceof Double && right instanceof Double)
+                        || (left instanceof String && right instanceof String);
+                break;
+            default:
+                foldable = left instanceof Double && right instanceof Double;
+                break;
+        }
+        if (!foldable) return expr;
+
+        return new Expr.Literal(Rope.flatten(
+                BinaryNode.UNINITIALIZED.execute(expr, left, right)));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+        if (callee == expr.callee && arguments.equals(expr.arguments)) {
+            return expr;
+        }
+
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (isLiteral(expression)) return expression;
+        if (expression == expr.expression) return expr;
+
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // A constant left operand decides which operand is the result.
+        if (isLiteral(left)) {
+            boolean truthy = Interpreter.isTruthy(valueOf(left));
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (isLiteral(right) && (expr.operator.type == TokenType.BANG
+                || valueOf(right) instanceof Double)) {
+            return new Expr.Literal(
+                    UnaryNode.UNINITIALIZED.execute(expr, valueOf(right)));
+        }
+        if (right == expr.right) return expr;
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
@@ -5,11 +5,22 @@ import java.util.*;
 import static com.craftinginterpreters.lox.TokenType.*;
 
 public class Parser {
-    private final List<Token> tokens;
+    // Tokens are read by index and only become Token objects once the
+    // Parser keeps them.
+    private final TokenBuffer tokens;
     private int current = 0;
+    // How many blocks enclose the current token. Imports may only appear
+    // outside all of them.
+    private int blockDepth = 0;
+    private final ErrorReporter errors;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
+        this(tokens, Lox.reporter);
+    }
+
+    Parser(TokenBuffer tokens, ErrorReporter errors) {
         this.tokens = tokens;
+        this.errors = errors;
     }
 
     List<Stmt> parse() {
@@ -21,10 +32,22 @@ public class Parser {
         return statements;
     }
 
+    // Parses the next top-level declaration, for front ends that keep
+    // track of where each one is. Returns null after a syntax error.
+    Stmt parseDeclaration() {
+        return declaration();
+    }
+
+    // The index of the next token to parse.
+    int position() {
+        return current;
+    }
+
     private Stmt declaration() {
         try {
             if (match(CLASS)) return classDeclaration();
             if (match(FUN)) return function("function");
+            if (match(IMPORT)) return importDeclaration();
             if (match(VAR)) return varDeclaration();
             return statement();
         } catch (ParseError error) {
@@ -35,6 +58,13 @@ public class Parser {
 
     private Stmt classDeclaration() {
         Token name = consume(IDENTIFIER, "Expect class name");
+
+        Expr.Variable superclass = null;
+        if (match(LESS)) {
+            consume(IDENTIFIER, "Expect superclass name.");
+            superclass = new Expr.Variable(previous());
+        }
+
         consume(LEFT_BRACE, "Expect '{' before class body.");
 
         List<Stmt.Function> methods = new ArrayList<>();
@@ -44,7 +74,7 @@ public class Parser {
 
         consume(RIGHT_BRACE, "Expect '}' after class body.");
 
-        return new Stmt.Class(name, methods);
+        return new Stmt.Class(name, superclass, methods);
     }
 
     private Stmt.Function function(String kind) {
@@ -68,6 +98,15 @@ public class Parser {
         return new Stmt.Function(name, parameters, body);
     }
 
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        if (blockDepth > 0) error(keyword, "Can only import at top level.");
+
+        Token path = consume(STRING, "Expect module path.");
+        consume(SEMICOLON, "Expect ';' after import.");
+        return new Stmt.Import(keyword, path);
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
 
@@ -126,22 +165,8 @@ public class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-        }
-
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt whileStatement() {
@@ -183,8 +208,13 @@ public class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        blockDepth++;
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            blockDepth--;
         }
 
         consume(RIGHT_BRACE, "Expect '}' after block.");
@@ -263,27 +293,26 @@ public class Parser {
         if (isAtEnd()) {
             return false;
         } else {
-            return peek().type == type;
+            return tokens.type(current) == type;
         }
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current += 1;
         }
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private Expr comparsion() {
@@ -380,6 +409,14 @@ public class Parser {
             return new Expr.Literal(previous().literal);
         }
 
+        if (match(SUPER)) {
+            Token keyword = previous();
+            consume(DOT, "Expect '.' after 'super'.");
+            Token method = consume(IDENTIFIER,
+                    "Expect superclass method name.");
+            return new Expr.Super(keyword, method);
+        }
+
         if (match(THIS)) return new Expr.This(previous());
 
         if (match(IDENTIFIER)) {
@@ -397,14 +434,15 @@ public class Parser {
 
     private Token consume(TokenType type, String message) {
         if (check(type)) {
-            return advance();
+            advance();
+            return previous();
         } else {
             throw error(peek(), message);
         }
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 
@@ -412,12 +450,12 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) {
+            if (tokens.type(current - 1) == SEMICOLON) {
                 return;
             }
 
-            switch (peek().type) {
-                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN:
+            switch (tokens.type(current)) {
+                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN, IMPORT:
                     return;
             }
             advance();
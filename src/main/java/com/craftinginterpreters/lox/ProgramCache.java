@@ -0,0 +1,702 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+// Keeps what a source file compiles to, the resolved and optimized
+// statements, in a cache file next to it ("fib.lox" is cached in
+// "fib.loxc"). A later run of the same source loads the tree from there
+// instead of scanning, parsing and resolving it again.
+//
+// The cache file starts with a header naming the format version, whether
+// the optimizer ran, the SHA-256 of the source and a checksum of the
+// interpreter's own classes, followed by a checksum of the rest. The trees
+// depend on how this build's Resolver and passes number and mark them, so
+// a cache written by any other build is never used. A cache whose header
+// or checksum doesn't match, or that fails to decode, is ignored and
+// rewritten.
+//
+// The tree is written in preorder, one tag byte per node followed by its
+// fields and what the Resolver recorded on it. Integers are varints, a
+// token's line is stored as the change from the previous token's, and
+// every distinct string is written once and then referred to by index.
+// Runtime state such as inline caches and JIT code is not kept.
+final class ProgramCache {
+    private static final int MAGIC = 0x4c4f5843;
+    // The layout of the file. Changes to the trees themselves are caught
+    // by the build checksum.
+    private static final int VERSION = 2;
+
+    // Node tags. Zero is a missing optional node.
+    private static final byte NONE = 0;
+    private static final byte ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4,
+            GROUPING = 5, LITERAL = 6, LOGICAL = 7, SET = 8, SUPER = 9,
+            THIS = 10, UNARY = 11, VARIABLE = 12;
+    private static final byte BLOCK = 20, CLASS = 21, EXPRESSION = 22,
+            FOR = 23, FUNCTION = 24, IF = 25, IMPORT = 26, PRINT = 27,
+            RETURN = 28, VAR = 29, WHILE = 30;
+
+    // Literal value tags.
+    private static final byte NIL = 0, FALSE = 1, TRUE = 2, NUMBER = 3,
+            STRING = 4;
+
+    // Smaller sources compile faster than their cache can be checked.
+    static final int MIN_SOURCE = 16 * 1024;
+
+    private static final TokenType[] types = TokenType.values();
+
+    private final Path cacheFile;
+    private final byte[] header;
+
+    ProgramCache(Path file, ByteBuffer source, boolean optimized) {
+        this.cacheFile = file.resolveSibling(file.getFileName() + "c");
+        if (Build.CHECKSUM == null) {
+            this.header = null;
+            return;
+        }
+
+        MessageDigest digest = sha256();
+        digest.update(source.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 1 + 32 + 8);
+        header.putInt(MAGIC).putInt(VERSION).put((byte) (optimized ? 1 : 0));
+        header.put(digest.digest()).put(Build.CHECKSUM);
+        this.header = header.array();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // A checksum of the running interpreter, computed once. Null if it
+    // can't be found, and then nothing is cached.
+    private static final class Build {
+        static final byte[] CHECKSUM = checksum();
+
+        // The interpreter's classes are checksummed from their directory
+        // or jar. A native image has no class files, and reading all of the
+        // executable would cost more than the cache saves, so its size and
+        // modification time stand in for it.
+        private static byte[] checksum() {
+            try {
+                CRC32 crc = new CRC32();
+                URL url = ProgramCache.class.getResource("ProgramCache.class");
+                if (url != null && url.getProtocol().equals("file")) {
+                    File[] classes = new File(url.toURI()).getParentFile().listFiles();
+                    Arrays.sort(classes);
+                    for (File file : classes) {
+                        if (!file.getName().endsWith(".class")) continue;
+                        crc.update(file.getName().getBytes(StandardCharsets.UTF_8));
+                        crc.update(Files.readAllBytes(file.toPath()));
+                    }
+                } else if (url != null && url.getProtocol().equals("jar")) {
+                    String jar = url.getPath();
+                    jar = jar.substring(0, jar.indexOf("!/"));
+                    crc.update(Files.readAllBytes(Paths.get(new URI(jar))));
+                } else {
+                    Optional<String> command = ProcessHandle.current().info().command();
+                    if (command.isEmpty()) return null;
+                    Path executable = Paths.get(command.get());
+                    crc.update(ByteBuffer.allocate(16)
+                            .putLong(Files.size(executable))
+                            .putLong(Files.getLastModifiedTime(executable).toMillis())
+                            .array());
+                }
+                return ByteBuffer.allocate(8).putLong(crc.getValue()).array();
+            } catch (IOException | URISyntaxException | RuntimeException error) {
+                return null;
+            }
+        }
+    }
+
+    // Returns null if there is no usable cache.
+    List<Stmt> load() {
+        if (header == null) return null;
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(cacheFile)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException error) {
+            return null;
+        }
+
+        if (buffer.remaining() < header.length + 4) return null;
+        byte[] found = new byte[header.length];
+        buffer.get(found);
+        if (!Arrays.equals(found, header)) return null;
+
+        // A cache that was damaged where it still decodes.
+        int checksum = buffer.getInt();
+        if (checksum(buffer.duplicate()) != checksum) return null;
+
+        try {
+            Decoder decoder = new Decoder(buffer);
+            List<Stmt> statements = decoder.statements();
+            return buffer.hasRemaining() ? null : statements;
+        } catch (RuntimeException error) {
+            // A truncated or corrupt cache.
+            return null;
+        }
+    }
+
+    // Writing the cache is best effort. It goes to a temporary file first
+    // so that a script started meanwhile never sees half of it.
+    void store(List<Stmt> statements) {
+        if (header == null) return;
+
+        Encoder encoder = new Encoder();
+        encoder.statements(statements);
+        byte[] payload = encoder.out.toByteArray();
+        ByteBuffer contents = ByteBuffer.allocate(header.length + 4 + payload.length);
+        contents.put(header).putInt(checksum(ByteBuffer.wrap(payload)));
+        contents.put(payload);
+
+        Path temporary = cacheFile.resolveSibling(cacheFile.getFileName()
+                + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(temporary, contents.array());
+            Files.move(temporary, cacheFile,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static final class Encoder
+            implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int line = 0;
+
+        void statements(List<? extends Stmt> statements) {
+            integer(statements.size());
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt == null) {
+                out.write(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr == null) {
+                out.write(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void expressions(List<Expr> exprs) {
+            integer(exprs.size());
+            for (Expr expr : exprs) {
+                expression(expr);
+            }
+        }
+
+        // An unsigned LEB128 varint.
+        private void integer(int value) {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        // Depths are -1 for a global, so they are stored one higher.
+        private void depth(int depth) {
+            integer(depth + 1);
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                integer(index);
+                return;
+            }
+
+            // A new string takes the next index and follows it.
+            integer(strings.size());
+            strings.put(string, strings.size());
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            integer(bytes.length);
+            out.writeBytes(bytes);
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                out.write(NIL);
+            } else if (value instanceof Boolean) {
+                out.write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.write(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (bits >>> shift));
+                }
+            } else {
+                out.write(STRING);
+                string(value.toString());
+            }
+        }
+
+        private void token(Token token) {
+            out.write(token.type.ordinal());
+            // Zigzag encoded, since a later node can be on an earlier line.
+            int delta = token.line - line;
+            integer((delta << 1) ^ (delta >> 31));
+            line = token.line;
+            // Everything else follows from the lexeme, as in TokenBuffer.
+            if (TokenBuffer.fixedLexeme(token.type) == null) string(token.lexeme);
+        }
+
+        private void tokens(List<Token> tokens) {
+            integer(tokens.size());
+            for (Token token : tokens) {
+                token(token);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            out.write(BLOCK);
+            statements(stmt.statements);
+            integer(stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            out.write(CLASS);
+            token(stmt.name);
+            expression(stmt.superclass);
+            statements(stmt.methods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            out.write(EXPRESSION);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            out.write(FOR);
+            statement(stmt.initializer);
+            expression(stmt.condition);
+            expression(stmt.increment);
+            statement(stmt.body);
+            integer(stmt.frameSize);
+            // 0 if not counted, else 1 plus whether the body reads the counter.
+            if (stmt.counted == null) {
+                integer(0);
+            } else {
+                integer(stmt.counted.counterRead ? 2 : 1);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            out.write(FUNCTION);
+            token(stmt.name);
+            tokens(stmt.params);
+            statements(stmt.body);
+            integer(stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            out.write(IF);
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            out.write(IMPORT);
+            token(stmt.keyword);
+            token(stmt.path);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            out.write(PRINT);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            out.write(RETURN);
+            token(stmt.keyword);
+            expression(stmt.value);
+            out.write(stmt.tailCall ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            out.write(VAR);
+            token(stmt.name);
+            expression(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            out.write(WHILE);
+            expression(stmt.condition);
+            statement(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            out.write(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            depth(expr.depth);
+            integer(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            out.write(BINARY);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            out.write(CALL);
+            expression(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            out.write(GET);
+            expression(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            out.write(GROUPING);
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            out.write(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            out.write(LOGICAL);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            out.write(SET);
+            expression(expr.object);
+            token(expr.name);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            out.write(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            depth(expr.depth);
+            integer(expr.slot);
+            depth(expr.thisDepth);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            out.write(THIS);
+            token(expr.keyword);
+            depth(expr.depth);
+            integer(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            out.write(UNARY);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            out.write(VARIABLE);
+            token(expr.name);
+            depth(expr.depth);
+            integer(expr.slot);
+            return null;
+        }
+    }
+
+    // Reads back what the Encoder wrote, field for field.
+    private static final class Decoder {
+        private final ByteBuffer in;
+        private final List<String> strings = new ArrayList<>();
+        private int line = 0;
+
+        Decoder(ByteBuffer in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() {
+            int count = integer();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(statement());
+            }
+            return statements;
+        }
+
+        private List<Expr> expressions() {
+            int count = integer();
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                exprs.add(expression());
+            }
+            return exprs;
+        }
+
+        private int integer() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        private int depth() {
+            return integer() - 1;
+        }
+
+        private String string() {
+            int index = integer();
+            if (index < strings.size()) return strings.get(index);
+
+            byte[] bytes = new byte[integer()];
+            in.get(bytes);
+            String string = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+
+        private Object value() {
+            switch (in.get()) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return Double.longBitsToDouble(in.getLong());
+                case STRING: return string();
+                default: throw new IllegalArgumentException("Bad value tag.");
+            }
+        }
+
+        private Token token() {
+            TokenType type = types[in.get()];
+            int delta = integer();
+            line += (delta >>> 1) ^ -(delta & 1);
+            String lexeme = TokenBuffer.fixedLexeme(type);
+            if (lexeme != null) return new Token(type, lexeme, null, line);
+
+            lexeme = string();
+            switch (type) {
+                case IDENTIFIER: {
+                    int symbol = Symbols.intern(lexeme);
+                    return new Token(type, Symbols.name(symbol), null, line, symbol);
+                }
+                case NUMBER:
+                    return new Token(type, lexeme, Double.parseDouble(lexeme), line);
+                case STRING:
+                    return new Token(type, lexeme,
+                            lexeme.substring(1, lexeme.length() - 1), line);
+                default:
+                    throw new IllegalArgumentException("Bad token type.");
+            }
+        }
+
+        private List<Token> tokens() {
+            int count = integer();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(token());
+            }
+            return tokens;
+        }
+
+        private Stmt statement() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.frameSize = integer();
+                    return stmt;
+                }
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable) expression();
+                    List<Stmt.Function> methods = new ArrayList<>();
+                    for (Stmt method : statements()) {
+                        methods.add((Stmt.Function) method);
+                    }
+                    return new Stmt.Class(name, superclass, methods);
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case FOR: {
+                    Stmt.For stmt = new Stmt.For(statement(), expression(),
+                            expression(), statement());
+                    stmt.frameSize = integer();
+                    int counted = integer();
+                    if (counted != 0) {
+                        stmt.counted = CountedLoop.match(stmt);
+                        stmt.counted.counterRead = counted == 2;
+                    }
+                    return stmt;
+                }
+                case FUNCTION: {
+                    Stmt.Function stmt = new Stmt.Function(token(), tokens(),
+                            statements());
+                    stmt.frameSize = integer();
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(expression(), statement(), statement());
+                case IMPORT:
+                    return new Stmt.Import(token(), token());
+                case PRINT:
+                    return new Stmt.Print(expression());
+                case RETURN: {
+                    Stmt.Return stmt = new Stmt.Return(token(), expression());
+                    stmt.tailCall = in.get() != 0;
+                    return stmt;
+                }
+                case VAR:
+                    return new Stmt.Var(token(), expression());
+                case WHILE:
+                    return new Stmt.While(expression(), statement());
+                default:
+                    throw new IllegalArgumentException("Bad statement tag.");
+            }
+        }
+
+        private Expr expression() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expression());
+                    expr.depth = depth();
+                    expr.slot = integer();
+                    return expr;
+                }
+                case BINARY:
+                    return new Expr.Binary(expression(), token(), expression());
+                case CALL:
+                    return new Expr.Call(expression(), token(), expressions());
+                case GET:
+                    return new Expr.Get(expression(), token());
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL:
+                    return new Expr.Logical(expression(), token(), expression());
+                case SET:
+                    return new Expr.Set(expression(), token(), expression());
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(token(), token());
+                    expr.depth = depth();
+                    expr.slot = integer();
+                    expr.thisDepth = depth();
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = depth();
+                    expr.slot = integer();
+                    return expr;
+                }
+                case UNARY:
+                    return new Expr.Unary(token(), expression());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = depth();
+                    expr.slot = integer();
+                    return expr;
+                }
+                default:
+                    throw new IllegalArgumentException("Bad expression tag.");
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.craftinginterpreters.lox;
+
+// The inline cache of an Expr.Get or Expr.Set. It remembers where the
+// property lived for the last few shapes seen at the site, so a hit only
+// compares shapes. A site that sees more shapes than that stops caching
+// and always takes the slow path.
+class PropertyCache {
+    private static final int MAX_SHAPES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_SHAPES];
+    // The field's index, or -1 when a Get found a method.
+    private final int[] indexes = new int[MAX_SHAPES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_SHAPES];
+    // For a Set that adds the field, the shape the instance moves to.
+    private final Shape[] transitions = new Shape[MAX_SHAPES];
+    private int count = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        int entry = lookup(instance.shape, name);
+        if (entry == -1) return instance.get(name);
+
+        int index = indexes[entry];
+        if (index != -1) return instance.fields[index];
+        return methods[entry].bind(instance);
+    }
+
+    // The method a call on the property would invoke without binding it,
+    // or null if the property is not a method, in which case get() finds
+    // whatever the call should use instead.
+    LoxFunction method(LoxInstance instance, Token name) {
+        int entry = lookup(instance.shape, name);
+        if (entry != -1) return methods[entry];
+
+        Shape shape = instance.shape;
+        if (shape.indexOf(name.symbol) != -1) return null;
+        return shape.claos.findMethod(name.symbol);
+    }
+
+    // The entry for a Get of the property on the given shape, adding one
+    // if there is room. Returns -1 when the property is missing or the
+    // site has gone megamorphic.
+    private int lookup(Shape shape, Token name) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+
+        if (count == MAX_SHAPES) return -1;
+
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            add(shape, index, null, null);
+            return count - 1;
+        }
+
+        LoxFunction method = shape.claos.findMethod(name.symbol);
+        if (method == null) return -1;
+
+        add(shape, -1, method, null);
+        return count - 1;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                Shape next = transitions[i];
+                if (next == null) {
+                    instance.fields[indexes[i]] = value;
+                } else {
+                    instance.addField(next, value);
+                }
+                return;
+            }
+        }
+
+        if (count == MAX_SHAPES) {
+            instance.set(name, value);
+            return;
+        }
+
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            add(shape, index, null, null);
+            instance.fields[index] = value;
+            return;
+        }
+
+        Shape next = shape.with(name.symbol);
+        add(shape, shape.size, null, next);
+        instance.addField(next, value);
+    }
+
+    private void add(Shape shape, int index, LoxFunction method,
+            Shape transition) {
+        shapes[count] = shape;
+        indexes[count] = index;
+        methods[count] = method;
+        transitions[count] = transition;
+        count++;
+    }
+}
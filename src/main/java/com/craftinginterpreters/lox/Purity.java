@@ -0,0 +1,273 @@
+package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// Finds the top-level functions whose result depends only on their
+// arguments, so their calls can be memoized. A function is pure when its
+// body only reads its own locals, never prints, never touches an instance,
+// declares no functions or classes, and calls nothing but other pure
+// functions.
+//
+// Callees are named by global, so a name only counts as a pure function if
+// the script declares it exactly once and never assigns to it. That needs
+// the whole program, which is why this runs on scripts and not the REPL.
+class Purity implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    private final Set<String> rebound = new HashSet<>();
+
+    // What the function being analyzed does.
+    private boolean pure;
+    private Set<String> callees;
+
+    // Returns the pure functions found among the statements.
+    List<Stmt.Function> pureFunctions(List<Stmt> program) {
+        List<Stmt> statements = new ArrayList<>();
+        topLevel(program, statements);
+
+        Set<String> declared = new HashSet<>();
+        for (Stmt statement : statements) {
+            Token name = declaredName(statement);
+            if (name == null) continue;
+            if (!declared.add(name.lexeme)) rebound.add(name.lexeme);
+            if (statement instanceof Stmt.Function) {
+                functions.put(name.lexeme, (Stmt.Function) statement);
+            }
+        }
+
+        // Walking everything also collects every assigned global.
+        Map<String, Set<String>> calls = new HashMap<>();
+        for (Stmt statement : statements) {
+            pure = true;
+            callees = new HashSet<>();
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) statement;
+                analyze(function.body);
+                if (pure) calls.put(function.name.lexeme, callees);
+            } else {
+                analyze(statement);
+            }
+        }
+        calls.keySet().removeAll(rebound);
+
+        // Drop functions that call something impure until nothing changes.
+        boolean changed = true;
+        while (changed) {
+            changed = calls.values().removeIf(
+                    callees -> !calls.keySet().containsAll(callees));
+        }
+
+        List<Stmt.Function> result = new ArrayList<>();
+        for (String name : calls.keySet()) {
+            result.add(functions.get(name));
+        }
+        return result;
+    }
+
+    // The top-level statements in the order they run, including those of
+    // the modules that imports run.
+    private static void topLevel(List<Stmt> program, List<Stmt> statements) {
+        for (Stmt statement : program) {
+            if (statement instanceof Stmt.Import) {
+                Module module = ((Stmt.Import) statement).module;
+                if (module != null) topLevel(module.statements, statements);
+            } else {
+                statements.add(statement);
+            }
+        }
+    }
+
+    private static Token declaredName(Stmt statement) {
+        if (statement instanceof Stmt.Function) return ((Stmt.Function) statement).name;
+        if (statement instanceof Stmt.Var) return ((Stmt.Var) statement).name;
+        if (statement instanceof Stmt.Class) return ((Stmt.Class) statement).name;
+        return null;
+    }
+
+    private void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            analyze(statement);
+        }
+    }
+
+    private void analyze(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void analyze(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        analyze(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        pure = false;
+        for (Stmt.Function method : stmt.methods) {
+            analyze(method.body);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) analyze(stmt.initializer);
+        analyze(stmt.condition);
+        if (stmt.increment != null) analyze(stmt.increment);
+        analyze(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // A closure is a new object on every call.
+        pure = false;
+        analyze(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        analyze(stmt.condition);
+        analyze(stmt.thenBranch);
+        if (stmt.elseBranch != null) analyze(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // Imported modules are analyzed as part of the top level.
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        pure = false;
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) analyze(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) analyze(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        analyze(stmt.condition);
+        analyze(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth == -1) {
+            rebound.add(expr.name.lexeme);
+            pure = false;
+        }
+        analyze(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Only a function named by a global is known before the call.
+        if (!(expr.callee instanceof Expr.Variable)
+                || ((Expr.Variable) expr.callee).depth != -1) {
+            pure = false;
+        }
+        analyze(expr.callee);
+
+        for (Expr argument : expr.arguments) {
+            analyze(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        pure = false;
+        analyze(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        analyze(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        pure = false;
+        analyze(expr.object);
+        analyze(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        // Any global but a function that is never rebound may change
+        // between calls, and that function must be pure too.
+        if (expr.depth != -1) return null;
+        if (functions.containsKey(expr.name.lexeme)) {
+            callees.add(expr.name.lexeme);
+        } else {
+            pure = false;
+        }
+        return null;
+    }
+}
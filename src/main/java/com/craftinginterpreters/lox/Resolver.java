@@ -3,14 +3,9 @@ package com.craftinginterpreters.lox;
 import java.util.*;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
-
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -20,19 +15,66 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private enum ClassType {
         NONE,
-        CLASS
+        CLASS,
+        SUBCLASS
     }
 
     private ClassType currentClass = ClassType.NONE;
+    private final ErrorReporter errors;
+
+    // How many functions enclose the code being resolved.
+    private int functionDepth = 0;
+
+    // A local variable's slot in its scope's frame, and whether its
+    // initializer has finished resolving. The rest is how it is used,
+    // which tells whether a loop counter can be kept out of its frame.
+    private class Local {
+        final int slot;
+        final int function = functionDepth;
+        boolean defined = false;
+        int reads = 0;
+        int assignments = 0;
+        boolean captured = false;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    Resolver() {
+        this(Lox.reporter);
+    }
+
+    Resolver(ErrorReporter errors) {
+        this.errors = errors;
+    }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block that declares nothing needs no scope, and so no frame.
+        if (!declaresLocals(stmt.statements)) {
+            resolve(stmt.statements);
+            stmt.frameSize = 0;
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.frameSize = endScope();
         return null;
     }
 
+    private static boolean declaresLocals(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var
+                    || statement instanceof Stmt.Function
+                    || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -48,11 +90,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
-    private void endScope() {
-        scopes.pop();
+    private int endScope() {
+        return scopes.pop().size();
     }
 
     @Override
@@ -61,6 +103,38 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // Only a loop variable needs a scope of its own.
+        if (!(stmt.initializer instanceof Stmt.Var)) {
+            if (stmt.initializer != null) resolve(stmt.initializer);
+            resolve(stmt.condition);
+            if (stmt.increment != null) resolve(stmt.increment);
+            resolve(stmt.body);
+            stmt.frameSize = 0;
+            return null;
+        }
+
+        beginScope();
+        resolve(stmt.initializer);
+        Local counter = scopes.peek().get(((Stmt.Var) stmt.initializer).name.lexeme);
+        resolve(stmt.condition);
+        if (stmt.increment != null) resolve(stmt.increment);
+        int headerReads = counter.reads;
+        resolve(stmt.body);
+        stmt.frameSize = endScope();
+
+        // The header of a counted loop reads the counter twice and assigns
+        // it once. Anything else may see the counter change.
+        CountedLoop counted = CountedLoop.match(stmt);
+        if (counted != null && headerReads == 2 && counter.assignments == 1
+                && !counter.captured) {
+            counted.counterRead = counter.reads > headerReads;
+            stmt.counted = counted;
+        }
+        return null;
+    }
+
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
@@ -73,14 +147,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        functionDepth++;
 
         beginScope();
+        // A method's receiver is the first slot of its own frame.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            Local self = new Local(0);
+            self.defined = true;
+            scopes.peek().put("this", self);
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        function.frameSize = endScope();
+        functionDepth--;
         currentFunction = enclosingFunction;
     }
 
@@ -92,6 +174,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // The module is resolved on its own when it is loaded.
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         resolve(stmt.expression);
@@ -101,15 +189,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            errors.error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword, 
+                errors.error(stmt.keyword, 
                 "Can't return a value from an initializer");
             }
             resolve(stmt.value);
+
+            // Nothing in the function runs after a returned call, so the
+            // call can reuse the function's place on the stack.
+            stmt.tailCall = stmt.value instanceof Expr.Call;
         }
         return null;
     }
@@ -127,19 +219,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void declare(Token name) {
         if (scopes.empty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek();
 
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            errors.error(name,
                     "Already a variable with this name in this scope");
+            return;
         }
 
-        scope.put(name.lexeme, false);
+        scope.put(name.lexeme, new Local(scope.size()));
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
     @Override
@@ -152,7 +245,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = depthOf(expr.name);
+        if (expr.depth != -1) {
+            Local local = use(expr.name, expr.depth);
+            local.assignments++;
+            expr.slot = local.slot;
+        }
         return null;
     }
 
@@ -198,12 +296,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                errors.error(expr.name, "Can't read local variable in its own initializer");
+            }
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = depthOf(expr.name);
+        if (expr.depth != -1) {
+            Local local = use(expr.name, expr.depth);
+            local.reads++;
+            expr.slot = local.slot;
+        }
         return null;
     }
 
@@ -213,13 +318,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // How many scopes out the name is declared, or -1 if it is a global.
+    private int depthOf(Token name) {
+        return depthOf(name.lexeme);
+    }
+
+    private int depthOf(String name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            if (scopes.get(i).containsKey(name)) {
+                return scopes.size() - 1 - i;
             }
         }
+        return -1;
+    }
+
+    private Local use(Token name, int depth) {
+        Local local = scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+        if (local.function != functionDepth) local.captured = true;
+        return local;
+    }
+
+    private int slotOf(Token name, int depth) {
+        return scopes.get(scopes.size() - 1 - depth).get(name.lexeme).slot;
     }
 
     @Override
@@ -237,8 +357,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         declare(stmt.name);
         define(stmt.name);
 
-        beginScope();
-        scopes.peek().put("this", true);
+        if (stmt.superclass != null) {
+            if (stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+                errors.error(stmt.superclass.name,
+                        "A class can't inherit from itself.");
+            }
+
+            currentClass = ClassType.SUBCLASS;
+            resolve(stmt.superclass);
+
+            // Methods close over a scope that holds only "super".
+            beginScope();
+            Local superclass = new Local(0);
+            superclass.defined = true;
+            scopes.peek().put("super", superclass);
+        }
 
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
@@ -248,19 +381,37 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
+        if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
         return null;
     }
 
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        if (currentClass == ClassType.NONE) {
+            errors.error(expr.keyword,
+                    "Can't use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+            errors.error(expr.keyword,
+                    "Can't use 'super' in a class with no superclass.");
+        }
+
+        // The receiver is always slot 0 of the enclosing method's frame.
+        expr.depth = depthOf(expr.keyword);
+        if (expr.depth != -1) expr.slot = slotOf(expr.keyword, expr.depth);
+        expr.thisDepth = depthOf("this");
+        return null;
+    }
+
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            errors.error(expr.keyword,
                     "Can't use 'this' outside of a class");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = depthOf(expr.keyword);
+        if (expr.depth != -1) expr.slot = slotOf(expr.keyword, expr.depth);
         return null;
     }
 
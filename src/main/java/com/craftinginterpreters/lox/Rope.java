@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+// A Lox string produced by concatenation, stored as a prefix of a
+// StringBuilder. Appending to the rope that ends where its builder ends
+// extends the builder in place, so building a string piece by piece costs
+// time linear in its final length instead of quadratic. Older ropes on the
+// same builder are prefixes of it, and the builder only ever grows, so they
+// stay valid.
+//
+// A rope is flattened into a String, once, the first time it is printed,
+// compared or used as a key. Strings shorter than MIN_LENGTH are cheaper
+// to copy than to share, so concatenation only makes ropes past that.
+final class Rope {
+    private static final int MIN_LENGTH = 256;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat = null;
+
+    private Rope(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+    }
+
+    // Whether a value is a Lox string, flat or not.
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // Concatenates two Lox strings.
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if (length < MIN_LENGTH) return (String) left + (String) right;
+
+        if (left instanceof Rope) {
+            Rope rope = (Rope) left;
+            if (rope.builder.length() == rope.length) {
+                append(rope.builder, right);
+                return new Rope(rope.builder, length);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(length + MIN_LENGTH);
+        append(builder, left);
+        append(builder, right);
+        return new Rope(builder, length);
+    }
+
+    // Replaces a rope with its String.
+    static Object flatten(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    private static int length(Object string) {
+        if (string instanceof Rope) return ((Rope) string).length;
+        return ((String) string).length();
+    }
+
+    private static void append(StringBuilder builder, Object string) {
+        if (string instanceof Rope) {
+            Rope rope = (Rope) string;
+            if (rope.flat == null && rope.builder != builder) {
+                builder.append(rope.builder, 0, rope.length);
+                return;
+            }
+        }
+        builder.append(string.toString());
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = builder.substring(0, length);
+        return flat;
+    }
+}
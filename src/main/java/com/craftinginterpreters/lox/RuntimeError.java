@@ -1,10 +1,14 @@
 package com.craftinginterpreters.lox;
 
 public class RuntimeError extends RuntimeException {
-    final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
+        this(token.line, message);
+    }
+
+    RuntimeError(int line, String message) {
         super(message);
-        this.token = token;
+        this.line = line;
     }
 }
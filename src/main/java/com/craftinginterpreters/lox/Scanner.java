@@ -1,55 +1,55 @@
 package com.craftinginterpreters.lox;
 
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
+// Scans UTF-8 source a byte at a time into a TokenBuffer. Lox syntax
+// outside of string literals is all ASCII, so the Scanner never decodes
+// anything. It only records where each token is, and the TokenBuffer
+// decodes the ones the Parser keeps.
 public class Scanner {
-    private final String source;
+    private final ByteBuffer source;
+    private final int length;
     private int start = 0;
     private int current = 0;
-    private int line = 1;
-    private final List<Token> tokens = new ArrayList<>();
-
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
+    private int line;
+    private final TokenBuffer tokens;
+    private final ErrorReporter errors;
+
+    // The source is read from its position to its limit. It may be a
+    // mapped file, which the Scanner never copies as a whole.
+    Scanner(ByteBuffer source) {
+        this(source, 1, Lox.reporter);
+    }
+
+    // Scans part of a larger source, which starts on the given line.
+    Scanner(ByteBuffer source, int line, ErrorReporter errors) {
+        this.source = source.slice();
+        this.length = this.source.limit();
+        this.tokens = new TokenBuffer(this.source);
+        this.line = line;
+        this.errors = errors;
     }
 
     Scanner(String source) {
-        this.source = source;
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
     }
 
-    List<Token> scanTokens() {
+    TokenBuffer scanTokens() {
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
         return tokens;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
     private void scanToken() {
@@ -93,7 +93,12 @@ public class Scanner {
                     identifier();
                 }
                 else {
-                    Lox.error(line, "Unexpected character.");
+                    // Report a multi-byte character once.
+                    while ((peek() & 0xC0) == 0x80) {
+                        advance();
+                    }
+                    errors.error(line, "Unexpected character.");
+                    tokens.error(start);
                 }
             }
         }
@@ -103,12 +108,53 @@ public class Scanner {
         while (isAlphaNumeric(peek())){
             advance();
         }
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type == null){
-            type = IDENTIFIER;
+        addToken(keyword());
+    }
+
+    // Keywords are told apart by length and first letter, so at most two
+    // of them are compared with the identifier.
+    private TokenType keyword() {
+        char first = charAt(start);
+        switch (current - start) {
+            case 2:
+                if (first == 'i') return is("if", IF);
+                if (first == 'o') return is("or", OR);
+                break;
+            case 3:
+                if (first == 'a') return is("and", AND);
+                if (first == 'f') {
+                    return charAt(start + 1) == 'o' ? is("for", FOR) : is("fun", FUN);
+                }
+                if (first == 'n') return is("nil", NIL);
+                if (first == 'v') return is("var", VAR);
+                break;
+            case 4:
+                if (first == 'e') return is("else", ELSE);
+                if (first == 't') {
+                    return charAt(start + 1) == 'h' ? is("this", THIS) : is("true", TRUE);
+                }
+                break;
+            case 5:
+                if (first == 'c') return is("class", CLASS);
+                if (first == 'f') return is("false", FALSE);
+                if (first == 'p') return is("print", PRINT);
+                if (first == 's') return is("super", SUPER);
+                if (first == 'w') return is("while", WHILE);
+                break;
+            case 6:
+                if (first == 'i') return is("import", IMPORT);
+                if (first == 'r') return is("return", RETURN);
+                break;
+        }
+        return IDENTIFIER;
+    }
+
+    // Checks the rest of the lexeme against a keyword of the same length.
+    private TokenType is(String keyword, TokenType type) {
+        for (int i = 1; i < keyword.length(); i++) {
+            if (charAt(start + i) != keyword.charAt(i)) return IDENTIFIER;
         }
-        addToken(type);
+        return type;
     }
     private void number() {
         while (isDigit(peek())){
@@ -125,16 +171,15 @@ public class Scanner {
             advance();
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private char peekNext(){
-        if(current+1 >=source.length()){
+        if(current+1 >=length){
             return '\0';
         }
         else{
-            return source.charAt(current+1);
+            return charAt(current+1);
         }
     }
 
@@ -160,22 +205,21 @@ public class Scanner {
         }
 
         if(isAtEnd()){
-            Lox.error(line, "Unterminated string.");
+            errors.error(line, "Unterminated string.");
+            tokens.error(start);
             return;
         }
 
         // The closing ".
         advance();
 
-        // Trim the surrounding quotes.
-        String value = source.substring(start+1, current-1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) {
             return false;
-        } else if (source.charAt(current) != expected) {
+        } else if (charAt(current) != expected) {
             return false;
         } else {
             current += 1;
@@ -184,25 +228,25 @@ public class Scanner {
     }
 
     private char advance() {
-        char c = source.charAt(current);
+        char c = charAt(current);
         current += 1;
         return c;
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        tokens.add(type, start, current - start, line);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    // A byte of the source, which is a character if it is ASCII.
+    private char charAt(int index) {
+        return (char) (source.get(index) & 0xFF);
     }
 
     private char peek() {
         if (isAtEnd()) {
             return '\0';
         } else {
-            return source.charAt(current);
+            return charAt(current);
         }
     }
 }
@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox;
+
+// The layout of a LoxInstance: which field lives at which index of its
+// field array. Instances that gained the same fields in the same order
+// share one Shape, and adding a field moves an instance along a cached
+// transition to the next one. Every class has its own root, so a shape
+// also tells which class an instance belongs to.
+class Shape {
+    final LoxClass claos;
+    final int size;
+
+    private final SymbolMap<Integer> indexes;
+    private final SymbolMap<Shape> transitions = new SymbolMap<>();
+
+    Shape(LoxClass claos) {
+        this.claos = claos;
+        this.size = 0;
+        this.indexes = new SymbolMap<>();
+    }
+
+    private Shape(Shape parent, int name) {
+        this.claos = parent.claos;
+        this.size = parent.size + 1;
+        this.indexes = new SymbolMap<>(parent.indexes);
+        indexes.put(name, parent.size);
+    }
+
+    // The index of a field, or -1 if instances of this shape lack it.
+    int indexOf(int name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // The shape an instance moves to when it gains the given field.
+    Shape with(int name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -7,8 +7,10 @@ abstract class Stmt{
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
+    R visitImportStmt(Import stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
@@ -25,10 +27,13 @@ abstract class Stmt{
     }
 
     final List<Stmt> statements;
+
+    int frameSize;
   }
   static class Class extends Stmt {
-    Class(Token name, List<Stmt.Function> methods) {
+    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
       this.name = name;
+      this.superclass = superclass;
       this.methods = methods;
     }
 
@@ -38,6 +43,7 @@ abstract class Stmt{
     }
 
     final Token name;
+    final Expr.Variable superclass;
     final List<Stmt.Function> methods;
   }
   static class Expression extends Stmt {
@@ -52,6 +58,30 @@ abstract class Stmt{
 
     final Expr expression;
   }
+  static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+
+    int frameSize;
+    CountedLoop counted;
+    int hotness;
+    Jit.Code compiled;
+    Jit jit;
+  }
   static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
@@ -67,6 +97,12 @@ abstract class Stmt{
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    int frameSize;
+    int hotness;
+    Jit.Code compiled;
+    Jit jit;
+    Memo memo;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -84,6 +120,22 @@ abstract class Stmt{
     final Stmt thenBranch;
     final Stmt elseBranch;
   }
+  static class Import extends Stmt {
+    Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+
+    Module module;
+  }
   static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
@@ -109,6 +161,8 @@ abstract class Stmt{
 
     final Token keyword;
     final Expr value;
+
+    boolean tailCall;
   }
   static class Var extends Stmt {
     Var(Token name, Expr initializer) {
@@ -137,6 +191,10 @@ abstract class Stmt{
 
     final Expr condition;
     final Stmt body;
+
+    int hotness;
+    Jit.Code compiled;
+    Jit jit;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
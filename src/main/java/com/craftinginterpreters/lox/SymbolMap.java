@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+// A hash map keyed by symbol, using open addressing with linear probing.
+// Symbols are dense small integers, so a symbol is its own hash.
+class SymbolMap<V> {
+    // Each key is its symbol plus one, so that zero marks an empty slot.
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    SymbolMap() {
+        keys = new int[8];
+        values = new Object[8];
+    }
+
+    SymbolMap(SymbolMap<V> other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int symbol) {
+        int mask = keys.length - 1;
+        for (int i = symbol & mask; ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == symbol + 1) return (V) values[i];
+            if (key == 0) return null;
+        }
+    }
+
+    void put(int symbol, V value) {
+        int mask = keys.length - 1;
+        for (int i = symbol & mask; ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == symbol + 1) {
+                values[i] = value;
+                return;
+            }
+            if (key == 0) {
+                keys[i] = symbol + 1;
+                values[i] = value;
+                // Stay at most half full so probe sequences stay short.
+                if (++size * 2 > keys.length) grow();
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void putAll(SymbolMap<V> other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0) put(other.keys[i] - 1, (V) other.values[i]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) put(oldKeys[i] - 1, (V) oldValues[i]);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every identifier the Scanner sees is interned here as a small integer,
+// so the runtime can key globals, fields and methods by symbol instead of
+// hashing and comparing names. Symbols are numbered densely from zero and
+// never removed.
+final class Symbols {
+    // Modules are parsed on several threads at once, and most identifiers
+    // are already interned, so lookups take no lock. Only adding a symbol
+    // does.
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[256];
+    private static int count = 0;
+
+    static final int INIT = intern("init");
+
+    private Symbols() {
+    }
+
+    static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        synchronized (Symbols.class) {
+            id = ids.get(name);
+            if (id != null) return id;
+
+            String[] table = names;
+            if (count == table.length) table = Arrays.copyOf(table, count * 2);
+            table[count] = name;
+            // The name is published before the id that leads to it.
+            names = table;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    static String name(int symbol) {
+        return names[symbol];
+    }
+}
@@ -3,12 +3,19 @@ package com.craftinginterpreters.lox;
 public class Token {
     final TokenType type;
     final String lexeme;
+    // The interned identifier, or -1 if this is not an identifier.
+    final int symbol;
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     final Object literal;
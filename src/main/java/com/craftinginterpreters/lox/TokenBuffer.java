@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// The Scanner's output, one token per index in parallel arrays of its
+// type, where its lexeme starts in the source, how long it is and its
+// line. Scanning only fills in those numbers. A Token object, with its
+// lexeme and literal value, is only made when the Parser asks for one to
+// keep in the tree or to report an error at.
+final class TokenBuffer {
+    private static final TokenType[] types = TokenType.values();
+    // The lexeme of every token type that always has the same one.
+    private static final String[] fixedLexemes = new String[types.length];
+
+    static {
+        String[][] lexemes = {
+            {"(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*",
+             "!", "!=", "=", "==", ">", ">=", "<", "<="},
+            {"and", "class", "else", "false", "fun", "for", "if", "import",
+             "nil", "or", "print", "return", "super", "this", "true",
+             "var", "while"}
+        };
+        TokenType[][] kinds = {
+            {LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA, DOT,
+             MINUS, PLUS, SEMICOLON, SLASH, STAR, BANG, BANG_EQUAL, EQUAL,
+             EQUAL_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL},
+            {AND, CLASS, ELSE, FALSE, FUN, FOR, IF, IMPORT, NIL, OR, PRINT,
+             RETURN, SUPER, THIS, TRUE, VAR, WHILE}
+        };
+        for (int i = 0; i < kinds.length; i++) {
+            for (int j = 0; j < kinds[i].length; j++) {
+                fixedLexemes[kinds[i][j].ordinal()] = lexemes[i][j];
+            }
+        }
+        fixedLexemes[EOF.ordinal()] = "";
+    }
+
+    private final ByteBuffer source;
+    private byte[] kinds = new byte[1024];
+    private int[] starts = new int[1024];
+    private int[] lengths = new int[1024];
+    private int[] lines = new int[1024];
+    private int count = 0;
+    // Where the Scanner reported errors, in order.
+    private final List<Integer> errors = new ArrayList<>();
+
+    TokenBuffer(ByteBuffer source) {
+        this.source = source;
+    }
+
+    // The lexeme every token of the type has, or null if it varies.
+    static String fixedLexeme(TokenType type) {
+        return fixedLexemes[type.ordinal()];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        kinds[count] = (byte) type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    void error(int start) {
+        errors.add(start);
+    }
+
+    List<Integer> errors() {
+        return errors;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return types[kinds[index]];
+    }
+
+    // Where the token's lexeme starts in the source.
+    int start(int index) {
+        return starts[index];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    Token token(int index) {
+        TokenType type = type(index);
+        int line = lines[index];
+        switch (type) {
+            case IDENTIFIER: {
+                int symbol = Symbols.intern(ascii(starts[index], lengths[index]));
+                return new Token(type, Symbols.name(symbol), null, line, symbol);
+            }
+            case NUMBER: {
+                String text = ascii(starts[index], lengths[index]);
+                return new Token(type, text, Double.parseDouble(text), line);
+            }
+            case STRING: {
+                // The value leaves out the surrounding quotes.
+                byte[] bytes = new byte[lengths[index] - 2];
+                source.get(starts[index] + 1, bytes);
+                String value = new String(bytes, StandardCharsets.UTF_8);
+                return new Token(type, '"' + value + '"', value, line);
+            }
+            default:
+                return new Token(type, fixedLexemes[type.ordinal()], null, line);
+        }
+    }
+
+    // The text of a lexeme known to be ASCII.
+    private String ascii(int start, int length) {
+        byte[] bytes = new byte[length];
+        source.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -17,8 +17,8 @@ enum TokenType {
 
     // Keywords.
     AND, CLASS, ELSE, FALSE, FUN, FOR,
-    IF, NIL, OR, PRINT, RETURN, SUPER,
-    THIS, TRUE, VAR, WHILE,
+    IF, IMPORT, NIL, OR, PRINT, RETURN,
+    SUPER, THIS, TRUE, VAR, WHILE,
 
     EOF
 }
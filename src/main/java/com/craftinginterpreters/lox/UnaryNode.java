@@ -0,0 +1,73 @@
+package com.craftinginterpreters.lox;
+
+// The executable form of an Expr.Unary, rewritten in place the same way
+// as BinaryNode.
+abstract class UnaryNode {
+    static final UnaryNode UNINITIALIZED = new Uninitialized();
+    private static final UnaryNode GENERIC = new Generic();
+
+    abstract Object execute(Expr.Unary expr, Object right);
+
+    private static class Uninitialized extends UnaryNode {
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            UnaryNode node = GENERIC;
+            if (expr.operator.type == TokenType.BANG) {
+                node = Not.INSTANCE;
+            } else if (right instanceof Double) {
+                node = NumberNegate.INSTANCE;
+            }
+
+            expr.node = node;
+            return node.execute(expr, right);
+        }
+    }
+
+    private static class NumberNegate extends UnaryNode {
+        static final UnaryNode INSTANCE = new NumberNegate();
+
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            if (right instanceof Double) {
+                return -(double) right;
+            }
+
+            expr.node = GENERIC;
+            return GENERIC.execute(expr, right);
+        }
+    }
+
+    // Truthiness is defined for every value, so no guard is needed.
+    private static class Not extends UnaryNode {
+        static final UnaryNode INSTANCE = new Not();
+
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            return !Interpreter.isTruthy(right);
+        }
+    }
+
+    private static class Generic extends UnaryNode {
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            switch (expr.operator.type) {
+                case MINUS:
+                    checkNumberOperand(expr.operator, right);
+                    return -(double) right;
+                case BANG:
+                    return !Interpreter.isTruthy(right);
+            }
+
+            // Unreachable.
+            return null;
+        }
+
+        private static void checkNumberOperand(Token operator, Object operand) {
+            if (operand instanceof Double) {
+                return;
+            } else {
+                throw new RuntimeError(operator, "Oprand must be a number.");
+            }
+        }
+    }
+}
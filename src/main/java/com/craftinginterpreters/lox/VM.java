@@ -0,0 +1,636 @@
+package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// A stack-based virtual machine for code produced by BytecodeCompiler.
+// It implements the same language as Interpreter, reporting the same
+// runtime errors, but keeps every call frame and temporary on its own
+// value stack instead of recursing through the syntax tree.
+class VM {
+    // Marks a global slot that has been referenced but never defined.
+    private static final Object UNDEFINED = new Object();
+
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        // Stack index of the frame's slot 0.
+        int base;
+    }
+
+    private Object[] stack = new Object[1024];
+    private int sp = 0;
+    private CallFrame[] frames;
+    private int frameCount = 0;
+    private VmUpvalue openUpvalues = null;
+
+    // Frames live on the heap, so this is the only bound on recursion.
+    private final int maxFrames;
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globals = new Object[64];
+
+    VM(int maxFrames) {
+        this.maxFrames = maxFrames;
+        frames = new CallFrame[Math.min(64, maxFrames)];
+        defineNative(new VmClock());
+    }
+
+    private static final class VmClock extends VmNative {
+        VmClock() {
+            super("clock", 0);
+        }
+
+        @Override
+        Object call(Object[] stack, int first) {
+            return Clock.now();
+        }
+    }
+
+    private void defineNative(VmNative function) {
+        globals[globalSlot(function.name)] = function;
+    }
+
+    // Returns the slot of the named global, allocating one the first time
+    // the compiler sees the name.
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        int index = globalSlots.size();
+        if (index == globals.length) {
+            globals = Arrays.copyOf(globals, index * 2);
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+        }
+        globals[index] = UNDEFINED;
+        globalNames[index] = name;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    void interpret(List<Stmt> statements) {
+        VmFunction script = new BytecodeCompiler(this).compile(statements);
+        if (Lox.hadError) return;
+
+        try {
+            VmClosure closure = new VmClosure(script);
+            push(closure);
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        // The stack and stack pointer live in locals while the loop runs.
+        // They are written back before calling anything that uses them.
+        Object[] stack = this.stack;
+        int sp = this.sp;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OP_CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OP_NIL: stack[sp++] = null; break;
+                case OP_TRUE: stack[sp++] = true; break;
+                case OP_FALSE: stack[sp++] = false; break;
+                case OP_POP: sp--; break;
+                case OP_GET_LOCAL:
+                    stack[sp++] = stack[base + readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OP_SET_LOCAL:
+                    stack[base + readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case OP_GET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    Object value = globals[slot];
+                    if (value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw undefinedVariable(slot);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OP_DEFINE_GLOBAL:
+                    globals[readShort(code, ip)] = stack[--sp];
+                    ip += 2;
+                    break;
+                case OP_SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    if (globals[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw undefinedVariable(slot);
+                    }
+                    globals[slot] = stack[sp - 1];
+                    break;
+                }
+                case OP_GET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    stack[sp++] = upvalue.location >= 0
+                            ? stack[upvalue.location] : upvalue.closed;
+                    break;
+                }
+                case OP_SET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if (upvalue.location >= 0) {
+                        stack[upvalue.location] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OP_GET_PROPERTY:
+                    frame.ip = ip + 2;
+                    this.sp = sp;
+                    getProperty((String) constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case OP_SET_PROPERTY:
+                    frame.ip = ip + 2;
+                    this.sp = sp;
+                    setProperty((String) constants[readShort(code, ip)]);
+                    sp = this.sp;
+                    ip += 2;
+                    break;
+                case OP_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OP_GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a > (double) b;
+                    break;
+                }
+                case OP_GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a >= (double) b;
+                    break;
+                }
+                case OP_LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a < (double) b;
+                    break;
+                }
+                case OP_LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a <= (double) b;
+                    break;
+                }
+                case OP_ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (double) a + (double) b;
+                    } else if (Rope.isString(a) && Rope.isString(b)) {
+                        stack[sp - 1] = Rope.concat(a, b);
+                    } else {
+                        stack[sp - 1] = a.toString() + b.toString();
+                    }
+                    break;
+                }
+                case OP_SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a - (double) b;
+                    break;
+                }
+                case OP_MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a * (double) b;
+                    break;
+                }
+                case OP_DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a / (double) b;
+                    break;
+                }
+                case OP_NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OP_NEGATE: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Oprand must be a number.");
+                    }
+                    stack[sp - 1] = -(double) value;
+                    break;
+                }
+                case OP_PRINT:
+                    System.out.println(Interpreter.stringify(stack[--sp]));
+                    break;
+                case OP_JUMP:
+                    ip += readInt(code, ip) + 4;
+                    break;
+                case OP_JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 4;
+                    } else {
+                        ip += readInt(code, ip) + 4;
+                    }
+                    break;
+                case OP_LOOP:
+                    ip -= readInt(code, ip) - 4;
+                    break;
+                case OP_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    callValue(stack[sp - 1 - argCount], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case OP_TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    Object callee = stack[sp - 1 - argCount];
+                    VmClosure target = null;
+                    if (callee instanceof VmClosure) {
+                        target = (VmClosure) callee;
+                    } else if (callee instanceof VmBoundMethod) {
+                        target = ((VmBoundMethod) callee).method;
+                    }
+
+                    // Slide the callee and its arguments down over this
+                    // frame and drop it, so the call reuses its place. A
+                    // bad call keeps the frame so the error points here.
+                    if (target != null && target.function.arity == argCount) {
+                        if (openUpvalues != null) closeUpvalues(base);
+                        System.arraycopy(stack, sp - 1 - argCount, stack, base,
+                                argCount + 1);
+                        sp = base + argCount + 1;
+                        frameCount--;
+                    }
+
+                    this.sp = sp;
+                    callValue(callee, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case OP_INVOKE: {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    invoke(name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case OP_CLOSURE:
+                    this.sp = sp;
+                    ip = closure(frame, code, constants, ip);
+                    sp = this.sp;
+                    break;
+                case OP_CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OP_RETURN: {
+                    Object result = stack[--sp];
+                    if (openUpvalues != null) closeUpvalues(base);
+                    frameCount--;
+                    sp = base;
+                    if (frameCount == 0) {
+                        this.sp = sp;
+                        return;
+                    }
+
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OP_CLASS:
+                    stack[sp++] = new VmClass((String) constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case OP_METHOD:
+                    this.sp = sp;
+                    defineMethod((String) constants[readShort(code, ip)]);
+                    sp = this.sp;
+                    ip += 2;
+                    break;
+                case OP_INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof VmClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    ((VmClass) stack[--sp]).inherit((VmClass) superclass);
+                    break;
+                }
+                case OP_GET_SUPER: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    frame.ip = ip;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    stack[sp - 1] = new VmBoundMethod(stack[sp - 1],
+                            superMethod(superclass, name));
+                    break;
+                }
+                case OP_SUPER_INVOKE: {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    VmClosure method = superMethod(superclass, name);
+                    this.sp = sp;
+                    call(method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] code, int ip) {
+        return (code[ip] << 24) | ((code[ip + 1] & 0xff) << 16)
+                | ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+    }
+
+    private void push(Object value) {
+        stack[sp++] = value;
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure) callee, argCount);
+        } else if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof VmClass) {
+            VmClass klass = (VmClass) callee;
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof VmNative) {
+            VmNative function = (VmNative) callee;
+            checkArity(function.arity, argCount);
+            Object result = function.call(stack, sp - argCount);
+            sp -= argCount + 1;
+            push(result);
+        } else {
+            throw error("Can only call functions and classes");
+        }
+    }
+
+    private void call(VmClosure closure, int argCount) {
+        VmFunction function = closure.function;
+        checkArity(function.arity, argCount);
+
+        if (frameCount == frames.length) {
+            if (frameCount >= maxFrames) throw error("Stack overflow.");
+            frames = Arrays.copyOf(frames, (int) Math.min(
+                    (long) frameCount * 2, maxFrames));
+        }
+
+        int base = sp - argCount - 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack,
+                    Math.max(stack.length * 2, base + function.maxStack));
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+    }
+
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw error("Expected " + arity + " arguments but got "
+                    + argCount + ".");
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof VmInstance)) {
+            throw error("Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance) receiver;
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+
+        VmClosure method = instance.klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private VmClosure superMethod(VmClass superclass, String name) {
+        VmClosure method = superclass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        return method;
+    }
+
+    private void getProperty(String name) {
+        Object receiver = stack[sp - 1];
+        if (!(receiver instanceof VmInstance)) {
+            throw error("Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance) receiver;
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - 1] = field;
+            return;
+        }
+
+        VmClosure method = instance.klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        stack[sp - 1] = new VmBoundMethod(instance, method);
+    }
+
+    private void setProperty(String name) {
+        Object receiver = stack[sp - 2];
+        if (!(receiver instanceof VmInstance)) {
+            throw error("Only instances have fields.");
+        }
+
+        Object value = stack[--sp];
+        ((VmInstance) receiver).fields.put(name, value);
+        stack[sp - 1] = value;
+    }
+
+    private void defineMethod(String name) {
+        VmClosure method = (VmClosure) stack[--sp];
+        VmClass klass = (VmClass) stack[sp - 1];
+        klass.methods.put(name, method);
+        if (name.equals("init")) klass.initializer = method;
+    }
+
+    // Creates a closure for the function constant at ip and captures its
+    // upvalues. Returns the ip of the next instruction.
+    private int closure(CallFrame frame, byte[] code, Object[] constants,
+            int ip) {
+        VmFunction function = (VmFunction) constants[readShort(code, ip)];
+        ip += 2;
+
+        VmClosure closure = new VmClosure(function);
+        push(closure);
+        for (int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = readShort(code, ip);
+            ip += 2;
+            if (isLocal) {
+                closure.upvalues[i] = captureUpvalue(frame.base + index);
+            } else {
+                closure.upvalues[i] = frame.closure.upvalues[index];
+            }
+        }
+        return ip;
+    }
+
+    private VmUpvalue captureUpvalue(int location) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) return upvalue;
+
+        VmUpvalue created = new VmUpvalue(location, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private RuntimeError undefinedVariable(int slot) {
+        return error("Undefined variable '" + globalNames[slot] + "'.");
+    }
+
+    // Builds an error for the instruction the current frame just read.
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+}
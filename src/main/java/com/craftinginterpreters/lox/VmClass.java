@@ -0,0 +1,26 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+    final Map<String, VmClosure> methods = new HashMap<>();
+    VmClosure initializer;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    // Copies the superclass's methods down so lookups never walk the
+    // hierarchy. Runs before any of this class's own methods are added.
+    void inherit(VmClass superclass) {
+        methods.putAll(superclass.methods);
+        initializer = superclass.initializer;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,23 @@
+package com.craftinginterpreters.lox;
+
+// A function compiled to bytecode. Closures created from it at runtime
+// share this prototype.
+class VmFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    // Most stack slots the function's frame can use, including its locals.
+    int maxStack = 1;
+
+    VmFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
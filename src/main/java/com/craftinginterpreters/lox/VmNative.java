@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+// A function implemented in Java. Its arguments are read straight off
+// the VM stack, starting at index first.
+abstract class VmNative {
+    final String name;
+    final int arity;
+
+    VmNative(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    abstract Object call(Object[] stack, int first);
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// A variable captured by a closure. While the variable is still on the
+// VM stack, location is its stack index. Once it goes out of scope the
+// value moves into closed and location becomes -1.
+class VmUpvalue {
+    int location;
+    Object closed;
+    // The next open upvalue further down the stack.
+    VmUpvalue next;
+
+    VmUpvalue(int location, VmUpvalue next) {
+        this.location = location;
+        this.next = next;
+    }
+}
@@ -13,32 +13,50 @@ public class GenerateAst {
             System.err.println("Current absolute path is: " + s);
         }
         String outputDir = "src/main/java/com/craftinginterpreters/lox" ;
+        // Fields after a ';' are not constructor parameters. They are left
+        // mutable so later passes can annotate the tree in place.
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign:   Token name, Expr value",
-                "Binary:   Expr left, Token operator, Expr right",
+                "Assign:   Token name, Expr value; int depth = -1, int slot",
+                "Binary:   Expr left, Token operator, Expr right;" +
+                        " BinaryNode node = BinaryNode.UNINITIALIZED",
                 "Call   :  Expr callee, Token paren, List<Expr> arguments",
-                "Get    :  Expr object, Token name",
+                "Get    :  Expr object, Token name;" +
+                        " PropertyCache cache = new PropertyCache()",
                 "Grouping: Expr expression",
                 "Literal:  Object value",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Set      :Expr object, Token name, Expr value",
-                "This     :Token keyword",
-                "Unary:    Token operator, Expr right",
-                "Variable: Token name"
+                "Set      :Expr object, Token name, Expr value;" +
+                        " PropertyCache cache = new PropertyCache()",
+                "Super    : Token keyword, Token method;" +
+                        " int depth = -1, int slot, int thisDepth," +
+                        " LoxClass cachedClass, LoxFunction cachedMethod",
+                "This     :Token keyword; int depth = -1, int slot",
+                "Unary:    Token operator, Expr right;" +
+                        " UnaryNode node = UnaryNode.UNINITIALIZED",
+                "Variable: Token name; int depth = -1, int slot"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, List<Stmt.Function> methods",
+                "Block      : List<Stmt> statements; int frameSize",
+                "Class      : Token name, Expr.Variable superclass," +
+                            " List<Stmt.Function> methods",
                 "Expression : Expr expression",
+                "For        : Stmt initializer, Expr condition," +
+                            " Expr increment, Stmt body; int frameSize," +
+                            " CountedLoop counted, int hotness," +
+                            " Jit.Code compiled, Jit jit",
                 "Function   : Token name, List<Token> params," +
-                            " List<Stmt> body",
+                            " List<Stmt> body; int frameSize," +
+                            " int hotness, Jit.Code compiled, Jit jit," +
+                            " Memo memo",
                 "If         : Expr condition, Stmt thenBranch," +
                             " Stmt elseBranch",
+                "Import     : Token keyword, Token path; Module module",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
+                "Return     : Token keyword, Expr value; boolean tailCall",
                 "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "While      : Expr condition, Stmt body;" +
+                            " int hotness, Jit.Code compiled, Jit jit"
         ));
     }
 
@@ -87,6 +105,12 @@ public class GenerateAst {
     }
 
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+        String[] annotations = new String[0];
+        if (fieldList.contains(";")) {
+            annotations = fieldList.split(";")[1].trim().split(", ");
+            fieldList = fieldList.split(";")[0].trim();
+        }
+
         writer.println("  static class " + className + " extends " + baseName + " {");
         // Constructor.
         writer.println("    " + className + "(" + fieldList + ") {");
@@ -113,6 +137,13 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (annotations.length > 0) {
+            writer.println();
+            for (String annotation : annotations) {
+                writer.println("    " + annotation + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }